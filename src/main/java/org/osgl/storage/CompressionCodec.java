@@ -0,0 +1,171 @@
+package org.osgl.storage;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.$;
+import org.osgl.util.E;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compress and decompress storage object content. There are two predefined codecs:
+ * 1. GZIP, the gzip format
+ * 2. DEFLATE, the zlib format
+ *
+ * Other codecs, e.g. LZ4 or Zstd, can be plugged in by implementing this interface
+ * and registering the implementation as a service provider in
+ * `META-INF/services/org.osgl.storage.CompressionCodec`, see {@link Predefined#valueOfIgnoreCase(String)}
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the name of the codec. The name is recorded in the attributes of
+     * the storage objects compressed by this codec, thus it shall not change once
+     * objects have been stored
+     *
+     * @return the codec name
+     */
+    String name();
+
+    /**
+     * Returns an output stream that compresses the content written into the
+     * output stream specified. Closing the returned stream shall close the
+     * output stream specified
+     *
+     * @param os the output stream to write the compressed content
+     * @return the compressing output stream
+     * @throws IOException if any IO error encountered
+     */
+    OutputStream compress(OutputStream os) throws IOException;
+
+    /**
+     * Returns an input stream that decompresses the content read from the
+     * input stream specified. Closing the returned stream shall close the
+     * input stream specified
+     *
+     * @param is the input stream to read the compressed content
+     * @return the decompressing input stream
+     * @throws IOException if any IO error encountered
+     */
+    InputStream decompress(InputStream is) throws IOException;
+
+    enum Predefined implements CompressionCodec {
+        GZIP() {
+            @Override
+            public OutputStream compress(OutputStream os) throws IOException {
+                return new GZIPOutputStream(os, BUF_SIZE);
+            }
+
+            @Override
+            public InputStream decompress(InputStream is) throws IOException {
+                return new GZIPInputStream(is, BUF_SIZE);
+            }
+        },
+        DEFLATE() {
+            @Override
+            public OutputStream compress(OutputStream os) {
+                final Deflater deflater = new Deflater();
+                return new DeflaterOutputStream(os, deflater, BUF_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            // deflater passed in is not released by the stream
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream is) {
+                final Inflater inflater = new Inflater();
+                return new InflaterInputStream(is, inflater, BUF_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+        };
+
+        private static final int BUF_SIZE = 8192;
+
+        // codecs plugged in, keyed by name and class name
+        private static final ConcurrentMap<String, CompressionCodec> plugged = new ConcurrentHashMap<>();
+
+        static {
+            for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class)) {
+                plugged.put(codec.name().toLowerCase(), codec);
+                plugged.put(codec.getClass().getName(), codec);
+            }
+        }
+
+        /**
+         * Returns the codec by name. The name is matched against, in order:
+         * * the predefined codecs, ignoring case
+         * * the codecs registered as service providers, ignoring case
+         * * the class name of a codec implementation
+         *
+         * @param s the codec name
+         * @return the codec
+         * @throws IllegalArgumentException if no codec found by the name specified
+         */
+        public static CompressionCodec valueOfIgnoreCase(String s) {
+            E.NPE(s);
+            if (GZIP.name().equalsIgnoreCase(s)) {
+                return GZIP;
+            } else if (DEFLATE.name().equalsIgnoreCase(s)) {
+                return DEFLATE;
+            }
+            CompressionCodec codec = plugged.get(s.toLowerCase());
+            if (null == codec) {
+                codec = plugged.get(s);
+            }
+            if (null == codec) {
+                E.illegalArgumentIf(s.indexOf('.') < 0, "unknown compression codec: %s", s);
+                CompressionCodec newCodec = $.newInstance(s);
+                codec = plugged.putIfAbsent(s, newCodec);
+                if (null == codec) {
+                    codec = newCodec;
+                }
+            }
+            return codec;
+        }
+    }
+
+}
@@ -49,6 +49,7 @@ import java.util.Calendar;
  * 1. PLAIN, all files are saved directly in one folder
  * 2. BY_DATE, files are saved in a hierarchical structure like yyyy/MM/dd
  * 3. BY_DATETIME, files are saved in a hierarchical structure like yyyy/MM/dd/HH/mm/ss
+ * 4. SHARDED, files are saved in hash based shard directories like ab/cd, see {@link ShardedKeyGenerator}
  */
 public interface KeyGenerator {
 
@@ -58,7 +59,7 @@ public interface KeyGenerator {
         /**
          * All item stored in the bucket (root folder) without hierarchy
          */
-        PLAIN {
+        PLAIN(-1) {
             @Override
             protected String tmpl() {
                 return null;
@@ -67,7 +68,7 @@ public interface KeyGenerator {
         /**
          * Items stored in a hierarchy structured by date: /yyyy/MM/dd/item
          */
-        BY_DATE {
+        BY_DATE(Calendar.DAY_OF_MONTH) {
             @Override
             protected String tmpl() {
                 return "%1$tY/%1$tm/%1$td/%2$s";
@@ -76,7 +77,7 @@ public interface KeyGenerator {
         /**
          * Items stored in a hierarchy structured by date and time: /yyyy/MM/dd/HH/item
          */
-        BY_HOUR {
+        BY_HOUR(Calendar.HOUR_OF_DAY) {
             @Override
             protected String tmpl() {
                 return "%1$tY/%1$tm/%1$td/%1$tH/%2$s";
@@ -85,7 +86,7 @@ public interface KeyGenerator {
         /**
          * Items stored in a hierarchy structured by date and time: /yyyy/MM/dd/HH/mm/item
          */
-        BY_MINUTE {
+        BY_MINUTE(Calendar.MINUTE) {
             @Override
             protected String tmpl() {
                 return "%1$tY/%1$tm/%1$td/%1$tH/%1$tM/%2$s";
@@ -94,7 +95,7 @@ public interface KeyGenerator {
         /**
          * Items stored in a hierarchy structured by date and time: /yyyy/MM/dd/HH/mm/ss/item
          */
-        BY_SECOND {
+        BY_SECOND(Calendar.SECOND) {
             @Override
             protected String tmpl() {
                 return "%1$tY/%1$tm/%1$td/%1$tH/%1$tM/%1$tS/%2$s";
@@ -106,25 +107,106 @@ public interface KeyGenerator {
          * Note this enum value is deprecated, please use `BY_SECOND` instead
          */
         @Deprecated
-        BY_DATETIME {
+        BY_DATETIME(Calendar.SECOND) {
             @Override
             protected String tmpl() {
                 return "%1$tY/%1$tm/%1$td/%1$tH/%1$tM/%1$tS/%2$s";
             }
+        },
+        /**
+         * Items stored in a hierarchy of two levels of hash based shards: /ab/cd/item
+         */
+        SHARDED(-1) {
+            @Override
+            protected String tmpl() {
+                return null;
+            }
+
+            @Override
+            public String getKey(String name, KeyNameProvider keyNameProvider) {
+                return ShardedKeyGenerator.SHARDED.getKey(name, keyNameProvider);
+            }
+        },
+        /**
+         * Items stored in a hierarchy of two levels of hash based shards followed by date: /ab/cd/yyyy/MM/dd/item
+         */
+        SHARDED_BY_DATE(-1) {
+            @Override
+            protected String tmpl() {
+                return null;
+            }
+
+            @Override
+            public String getKey(String name, KeyNameProvider keyNameProvider) {
+                return ShardedKeyGenerator.SHARDED_BY_DATE.getKey(name, keyNameProvider);
+            }
         };
 
+        /*
+         * The formatted prefix of the time bucket [start, end)
+         */
+        private static final class Prefix {
+            final long start;
+            final long end;
+            final String prefix;
+
+            Prefix(long start, long end, String prefix) {
+                this.start = start;
+                this.end = end;
+                this.prefix = prefix;
+            }
+        }
+
+        // the Calendar field of the time bucket of the key hierarchy, or -1 if there is no time hierarchy
+        private final int precision;
+        private volatile Prefix prefix = new Prefix(0, 0, "");
+
+        Predefined(int precision) {
+            this.precision = precision;
+        }
+
         protected abstract String tmpl();
 
         public String getKey(String name, KeyNameProvider keyNameProvider) {
             if (S.blank(name)) {
                 name = keyNameProvider.newKeyName();
             }
-            String tmpl = tmpl();
-            if (S.blank(tmpl)) {
+            if (precision < 0) {
                 return name;
-            } else {
-                return S.fmt(tmpl, Calendar.getInstance(), name);
             }
+            return prefix(System.currentTimeMillis()).concat(name);
+        }
+
+        /*
+         * Returns the formatted date time prefix of the time specified. The
+         * prefix is formatted once per time bucket, e.g. once per day for
+         * `BY_DATE`, and cached
+         */
+        @SuppressWarnings("fallthrough")
+        String prefix(long now) {
+            Prefix cached = prefix;
+            if (now >= cached.start && now < cached.end) {
+                return cached.prefix;
+            }
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            // truncate the fields finer than the precision, falling through the cases
+            switch (precision) {
+                case Calendar.DAY_OF_MONTH:
+                    calendar.set(Calendar.HOUR_OF_DAY, 0);
+                case Calendar.HOUR_OF_DAY:
+                    calendar.set(Calendar.MINUTE, 0);
+                case Calendar.MINUTE:
+                    calendar.set(Calendar.SECOND, 0);
+                default:
+                    calendar.set(Calendar.MILLISECOND, 0);
+            }
+            long start = calendar.getTimeInMillis();
+            String formatted = S.fmt(tmpl(), calendar, "");
+            calendar.add(precision, 1);
+            cached = new Prefix(start, calendar.getTimeInMillis(), formatted);
+            prefix = cached;
+            return cached.prefix;
         }
 
         public static KeyGenerator valueOfIgnoreCase(String s) {
@@ -145,8 +227,12 @@ public interface KeyGenerator {
                     || "second".equalsIgnoreCase(s)
                     || "sec".equalsIgnoreCase(s)) {
                 return BY_SECOND;
+            } else if (SHARDED.name().equalsIgnoreCase(s)) {
+                return SHARDED;
+            } else if (SHARDED_BY_DATE.name().equalsIgnoreCase(s) || "shardedByDate".equalsIgnoreCase(s)) {
+                return SHARDED_BY_DATE;
             }
-            return null;
+            return ShardedKeyGenerator.valueOfIgnoreCase(s);
         }
     }
 
@@ -0,0 +1,119 @@
+/* 
+ * Copyright (C) 2013 The Java Storage project
+ * Gelin Luo <greenlaw110(at)gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.osgl.storage;
+
+
+import org.osgl.$;
+import org.osgl.util.E;
+import org.osgl.util.S;
+
+/**
+ * Prepend hash based shard directories to the key generated by a base
+ * {@link KeyGenerator}, e.g. `3f/a0/2020/06/27/name` with depth `2` and
+ * width `2` on top of `BY_DATE`.
+ *
+ * The shards are derived from the hash of the key name, so the objects are
+ * evenly distributed among `16^(depth * width)` directories on a file system,
+ * and among the same number of key prefixes on an object store like S3 which
+ * partitions request rate by key prefix.
+ */
+public class ShardedKeyGenerator implements KeyGenerator {
+
+    static final KeyGenerator SHARDED = new ShardedKeyGenerator(2, 2, Predefined.PLAIN);
+    static final KeyGenerator SHARDED_BY_DATE = new ShardedKeyGenerator(2, 2, Predefined.BY_DATE);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int depth;
+    private final int width;
+    private final KeyGenerator base;
+
+    /**
+     * Construct a sharded key generator.
+     *
+     * @param depth the number of shard levels
+     * @param width the number of hex digits of each shard level
+     * @param base  the key generator to generate the key after the shards
+     */
+    public ShardedKeyGenerator(int depth, int width, KeyGenerator base) {
+        E.illegalArgumentIf(depth < 1 || width < 1 || depth * width > 16, "invalid shard depth or width: %s, %s", depth, width);
+        this.depth = depth;
+        this.width = width;
+        this.base = $.requireNotNull(base);
+    }
+
+    @Override
+    public String getKey(String name, KeyNameProvider keyNameProvider) {
+        if (S.blank(name)) {
+            name = keyNameProvider.newKeyName();
+        }
+        String key = base.getKey(name, keyNameProvider);
+        StringBuilder sb = new StringBuilder(depth * (width + 1) + key.length());
+        long hash = hash(name);
+        for (int i = 0; i < depth; ++i) {
+            for (int j = 0; j < width; ++j) {
+                sb.append(HEX[(int) (hash >>> 60)]);
+                hash <<= 4;
+            }
+            sb.append('/');
+        }
+        return sb.append(key).toString();
+    }
+
+    /**
+     * Parse the sharded key generator spec, e.g. `sharded`, `sharded:3`,
+     * `sharded:2:1` or `sharded:2:2:byDate`, which specifies the depth,
+     * the width and the base key generator, default to `2`, `2` and `PLAIN`
+     * respectively.
+     *
+     * @param s the spec
+     * @return the key generator or `null` if the spec is not a sharded key generator spec
+     */
+    public static KeyGenerator valueOfIgnoreCase(String s) {
+        String[] parts = s.split(":");
+        if (!"sharded".equalsIgnoreCase(parts[0]) || parts.length > 4) {
+            return null;
+        }
+        int depth = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 2;
+        int width = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 2;
+        KeyGenerator base = Predefined.PLAIN;
+        if (parts.length > 3) {
+            base = Predefined.valueOfIgnoreCase(parts[3].trim());
+            E.illegalArgumentIf(null == base || base instanceof ShardedKeyGenerator || Predefined.SHARDED == base
+                    || Predefined.SHARDED_BY_DATE == base, "invalid base key generator: %s", parts[3]);
+        }
+        return new ShardedKeyGenerator(depth, width, base);
+    }
+
+    // FNV-1a hash of the chars with a 64 bit finalizer to spread the bits
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = name.length(); i < n; ++i) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,93 @@
+/* 
+ * Copyright (C) 2013 The Java Storage project
+ * Gelin Luo <greenlaw110(at)gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.osgl.storage;
+
+
+import org.osgl.util.E;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generate key names from 64 bit ids in the style of Snowflake: 41 bits of
+ * milliseconds since `2020-01-01T00:00:00Z`, 10 bits of node id and 12 bits
+ * of sequence, encoded into 13 chars of Crockford's base32, e.g.
+ * `0C7WZ5K8G4003`.
+ *
+ * The key names are ordered by the time they are generated, and unique as long
+ * as each node generating keys into the same storage has a distinct node id,
+ * thus the node id has to be assigned explicitly.
+ * The sequence is advanced with a compare-and-set instead of a lock. When more
+ * than 4096 ids are requested in a millisecond, the ids borrow the timestamps
+ * of the coming milliseconds instead of waiting.
+ */
+public class SnowflakeKeyNameProvider implements KeyNameProvider {
+
+    /**
+     * The maximum node id
+     */
+    public static final int MAX_NODE_ID = 1023;
+
+    private static final long EPOCH = 1577836800000L;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_BITS = 10;
+
+    private final long node;
+    // the timestamp and the sequence of the last id
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * Construct a provider with the node id specified.
+     *
+     * @param nodeId the node id, from `0` to {@link #MAX_NODE_ID}
+     */
+    public SnowflakeKeyNameProvider(int nodeId) {
+        E.illegalArgumentIf(nodeId < 0 || nodeId > MAX_NODE_ID, "node id out of range: %s", nodeId);
+        this.node = nodeId;
+    }
+
+    @Override
+    public String newKeyName() {
+        char[] buf = new char[13];
+        UlidKeyNameProvider.encode(nextId(), buf, 0, 13);
+        return new String(buf);
+    }
+
+    /**
+     * Returns the next id.
+     *
+     * @return the id
+     */
+    public long nextId() {
+        return nextId(System.currentTimeMillis());
+    }
+
+    // the id is never less than the last one even if the clock goes backwards
+    long nextId(long currentTimeMillis) {
+        long now = (currentTimeMillis - EPOCH) << SEQUENCE_BITS;
+        long last, next;
+        do {
+            last = state.get();
+            next = Math.max(now, last + 1);
+        } while (!state.compareAndSet(last, next));
+        long timestamp = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1 << SEQUENCE_BITS) - 1);
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+}
@@ -0,0 +1,62 @@
+/* 
+ * Copyright (C) 2013 The Java Storage project
+ * Gelin Luo <greenlaw110(at)gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.osgl.storage;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generate key names in the format of <a href="https://github.com/ulid/spec">ULID</a>:
+ * 26 chars of Crockford's base32 encoding the 48 bit timestamp in milliseconds
+ * followed by 80 random bits, e.g. `01ARZ3NDEKTSV4RRFFQ69G5FAV`.
+ *
+ * The key names are ordered by the time they are generated, which keeps the
+ * objects created around the same time together in a listing. Unlike
+ * {@link KeyNameProvider#DEF_PROVIDER}, the random bits come from
+ * {@link ThreadLocalRandom} instead of a shared `SecureRandom`, thus key names
+ * can be generated concurrently without contention. The key names are not
+ * suitable where they need to be unpredictable.
+ */
+public class UlidKeyNameProvider implements KeyNameProvider {
+
+    static final char[] CROCKFORD_BASE32 = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    @Override
+    public String newKeyName() {
+        return newKeyName(System.currentTimeMillis());
+    }
+
+    String newKeyName(long timestamp) {
+        char[] buf = new char[26];
+        encode(timestamp, buf, 0, 10);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        encode(random.nextLong(), buf, 10, 8);
+        encode(random.nextLong(), buf, 18, 8);
+        return new String(buf);
+    }
+
+    // encode the lowest `5 * len` bits of the value into `len` chars
+    static void encode(long value, char[] buf, int offset, int len) {
+        for (int i = offset + len - 1; i >= offset; --i) {
+            buf[i] = CROCKFORD_BASE32[(int) (value & 31)];
+            value >>>= 5;
+        }
+    }
+}
@@ -20,8 +20,14 @@ package org.osgl.storage.impl;
  * #L%
  */
 
+import java.util.Map;
+
 class AzureObject extends StorageObject<AzureObject, AzureService> {
     AzureObject(String key, AzureService azureService) {
         super(key, azureService);
     }
+
+    AzureObject(String key, Map<String, String> attrs, AzureService azureService) {
+        super(key, attrs, azureService);
+    }
 }
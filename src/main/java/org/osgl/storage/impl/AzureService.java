@@ -20,7 +20,10 @@ package org.osgl.storage.impl;
  * #L%
  */
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
 import org.osgl.exception.AccessDeniedException;
@@ -29,13 +32,24 @@ import org.osgl.exception.ResourceNotFoundException;
 import org.osgl.storage.ISObject;
 import org.osgl.storage.IStorageService;
 import org.osgl.util.C;
+import org.osgl.util.Codec;
 import org.osgl.util.E;
+import org.osgl.util.IO;
 import org.osgl.util.S;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class AzureService extends StorageServiceBase<AzureObject> implements IStorageService {
@@ -47,12 +61,80 @@ public class AzureService extends StorageServiceBase<AzureObject> implements ISt
     public static final String CONF_ACCOUNT_KEY = "storage.azure.account.key";
     public static final String CONF_BUCKET = "storage.azure.bucket";
 
+    /**
+     * Blobs with size larger than or equal to this threshold, in bytes, are
+     * uploaded as blocks staged in parallel. Blobs with unknown size are uploaded
+     * as blocks if they are larger than the block size. Azure accepts single
+     * request uploads up to 64MB.
+     *
+     * Default value: `33554432`, i.e. 32MB
+     */
+    public static final String CONF_BLOCK_THRESHOLD = "storage.azure.block.threshold";
+
+    /**
+     * The size, in bytes, of each block of a block upload.
+     *
+     * Default value: `4194304`, i.e. 4MB
+     */
+    public static final String CONF_BLOCK_SIZE = "storage.azure.block.size";
+
+    /**
+     * The max number of blocks of one blob uploaded in parallel, which is
+     * also the max number of block buffers held in memory by one upload.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_BLOCK_CONCURRENCY = "storage.azure.block.concurrency";
+
+    /**
+     * The max number of retries of a failed block upload.
+     *
+     * Default value: `3`
+     */
+    public static final String CONF_BLOCK_RETRIES = "storage.azure.block.retries";
+
+    /**
+     * Blobs or ranges with size larger than this threshold, in bytes, are
+     * downloaded as ranges fetched in parallel. Smaller ones are streamed.
+     *
+     * Default value: `16777216`, i.e. 16MB
+     */
+    public static final String CONF_DOWNLOAD_THRESHOLD = "storage.azure.download.threshold";
+
+    /**
+     * The size, in bytes, of each range of a parallel download.
+     *
+     * Default value: `4194304`, i.e. 4MB
+     */
+    public static final String CONF_DOWNLOAD_RANGE_SIZE = "storage.azure.download.rangeSize";
+
+    /**
+     * The max number of ranges of one blob downloaded in parallel, which is
+     * also the max number of range buffers held in memory by one download.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_DOWNLOAD_CONCURRENCY = "storage.azure.download.concurrency";
+
     private final static String CONNECTION_PATTERN = "DefaultEndpointsProtocol={0};AccountName={1};AccountKey={2};";
     private final static String URL_PATTERN = "http://{0}.blob.core.windows.net/{1}/{2}";
+    private final static long COPY_POLL_INTERVAL = 100;
+    // Azure allows at most 50000 blocks in a blob
+    private final static int MAX_BLOCKS = 50000;
+    private final static int MAX_SINGLE_PUT_SIZE = 64 * 1024 * 1024;
+    // the smallest read size of a blob input stream allowed by the SDK
+    private final static int MIN_STREAM_READ_SIZE = 16 * 1024;
 
     private CloudBlobClient blobClient;
     private CloudBlobContainer blobContainer;
     private String accountName;
+    private int blockThreshold;
+    private int blockSize;
+    private int blockConcurrency;
+    private int blockRetries;
+    private long downloadThreshold;
+    private int downloadRangeSize;
+    private int downloadConcurrency;
 
     public AzureService(Map<String, String> conf) {
         super(conf, AzureObject.class);
@@ -64,6 +146,13 @@ public class AzureService extends StorageServiceBase<AzureObject> implements ISt
         String protocol = getConfValue(conf, CONF_PROTOCOL, "");
         String accountKey = getConfValue(conf, CONF_ACCOUNT_KEY, "");
         this.accountName = getConfValue(conf, CONF_ACCOUNT_NAME, "");
+        blockThreshold = Math.min(MAX_SINGLE_PUT_SIZE, Integer.parseInt(getConfValue(conf, CONF_BLOCK_THRESHOLD, "33554432")));
+        blockSize = Integer.parseInt(getConfValue(conf, CONF_BLOCK_SIZE, "4194304"));
+        blockConcurrency = Integer.parseInt(getConfValue(conf, CONF_BLOCK_CONCURRENCY, "4"));
+        blockRetries = Integer.parseInt(getConfValue(conf, CONF_BLOCK_RETRIES, "3"));
+        downloadThreshold = Long.parseLong(getConfValue(conf, CONF_DOWNLOAD_THRESHOLD, "16777216"));
+        downloadRangeSize = Integer.parseInt(getConfValue(conf, CONF_DOWNLOAD_RANGE_SIZE, "4194304"));
+        downloadConcurrency = Integer.parseInt(getConfValue(conf, CONF_DOWNLOAD_CONCURRENCY, "4"));
         connect(protocol, accountName, accountKey, conf.get(CONF_BUCKET));
     }
 
@@ -130,9 +219,7 @@ public class AzureService extends StorageServiceBase<AzureObject> implements ISt
         try {
             CloudBlockBlob blob = blobContainer.getBlockBlobReference(fullPath);
             blob.downloadAttributes();
-            Map<String, String> meta = C.newMap(blob.getMetadata());
-            meta.put(ISObject.ATTR_CONTENT_TYPE, blob.getProperties().getContentType());
-            return meta;
+            return attributes(blob);
         } catch (StorageException e) {
             throw handleException(fullPath, e);
         } catch (Exception e) {
@@ -140,35 +227,202 @@ public class AzureService extends StorageServiceBase<AzureObject> implements ISt
         }
     }
 
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        try {
+            CloudBlockBlob src = blobContainer.getBlockBlobReference(srcFullPath);
+            CloudBlockBlob dst = blobContainer.getBlockBlobReference(dstFullPath);
+            dst.startCopy(src);
+            waitForCopy(dst);
+        } catch (StorageException e) {
+            throw handleException(srcFullPath, e);
+        } catch (URISyntaxException e) {
+            throw E.unexpected(e, srcFullPath);
+        }
+    }
+
+    // copy within the same storage account is normally completed when startCopy
+    // returns, however Azure might still report it as pending
+    private static void waitForCopy(CloudBlockBlob blob) throws StorageException {
+        CopyState state = blob.getCopyState();
+        while (null != state && CopyStatus.PENDING == state.getStatus()) {
+            try {
+                Thread.sleep(COPY_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw E.unexpected(e, "interrupted while waiting for copy to complete: %s", blob.getName());
+            }
+            blob.downloadAttributes();
+            state = blob.getCopyState();
+        }
+        if (null != state && CopyStatus.SUCCESS != state.getStatus()) {
+            throw E.unexpected("failed to copy blob %s: %s", blob.getName(), state.getStatusDescription());
+        }
+    }
+
+    @Override
+    protected boolean isSameStorage(StorageServiceBase other) {
+        if (!(other instanceof AzureService)) {
+            return false;
+        }
+        AzureService that = (AzureService) other;
+        return S.eq(accountName, that.accountName) && S.eq(blobContainer.getName(), that.blobContainer.getName());
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(final String fullPrefix, String delimiter) {
+        final boolean flat = null == delimiter;
+        if (!flat && !S.eq(delimiter, blobClient.getDirectoryDelimiter())) {
+            throw E.unsupport("Azure blob service does not support delimiter: %s", delimiter);
+        }
+        return new PagedIterator<ISObject>() {
+            private ResultContinuation continuationToken;
+            private boolean hasMoreResults = true;
+
+            @Override
+            protected List<ISObject> nextPage() {
+                if (!hasMoreResults) {
+                    return null;
+                }
+                ResultSegment<ListBlobItem> segment;
+                try {
+                    segment = blobContainer.listBlobsSegmented(fullPrefix, flat,
+                            EnumSet.of(BlobListingDetails.METADATA), null, continuationToken, null, null);
+                } catch (StorageException e) {
+                    throw handleException(fullPrefix, e);
+                }
+                continuationToken = segment.getContinuationToken();
+                hasMoreResults = segment.getHasMoreResults();
+                List<ISObject> page = new ArrayList<>();
+                for (ListBlobItem item : segment.getResults()) {
+                    if (item instanceof CloudBlobDirectory) {
+                        page.add(listedPrefix(((CloudBlobDirectory) item).getPrefix()));
+                    } else if (item instanceof CloudBlob) {
+                        CloudBlob blob = (CloudBlob) item;
+                        page.add(listedObject(blob.getName(), attributes(blob)));
+                    }
+                }
+                return page;
+            }
+        };
+    }
+
+    // metadata names shall be C# identifiers, thus "-" in attribute names,
+    // e.g. content-codec, is stored as "__" and restored on read
+    private static String metadataName(String attr) {
+        return attr.replace("-", "__");
+    }
+
+    private static Map<String, String> attributes(CloudBlob blob) {
+        Map<String, String> meta = C.newMap();
+        for (Map.Entry<String, String> entry : blob.getMetadata().entrySet()) {
+            meta.put(entry.getKey().replace("__", "-"), entry.getValue());
+        }
+        BlobProperties props = blob.getProperties();
+        meta.put(ISObject.ATTR_CONTENT_TYPE, props.getContentType());
+        meta.put(ISObject.ATTR_CONTENT_LENGTH, S.string(props.getLength()));
+        if (null != props.getEtag()) {
+            meta.put(ATTR_ETAG, unquote(props.getEtag()));
+        }
+        if (null != props.getLastModified()) {
+            meta.put(ATTR_LAST_MODIFIED, S.string(props.getLastModified().getTime()));
+        }
+        return meta;
+    }
+
     @Override
     protected ISObject newSObject(String key) {
         return new AzureObject(key, this);
     }
 
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new AzureObject(key, attrs, this);
+    }
+
     @Override
     protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        InputStream is = stuff.asInputStream();
         try {
             CloudBlockBlob blob = blobContainer.getBlockBlobReference(fullPath);
-            if (!(stuff instanceof SObject.InputStreamSObject)) {
-                blob.upload(stuff.asInputStream(), stuff.getLength());
-            }
-            BlobProperties props = blob.getProperties();
+            // set properties and metadata before upload so that they are sent
+            // along with the content.
             // content-type contains "-" which is illegal character in C# identifier
             // so we have to remove it from meta map
             String contentType = attrs.remove(ISObject.ATTR_CONTENT_TYPE);
             if (S.notBlank(contentType)) {
-                props.setContentType(contentType);
+                blob.getProperties().setContentType(contentType);
+            }
+            String encoding = contentEncodingOf(attrs);
+            if (null != encoding) {
+                blob.getProperties().setContentEncoding(encoding);
+            }
+            HashMap<String, String> metadata = new HashMap<>();
+            for (Map.Entry<String, String> entry : attrs.entrySet()) {
+                // the blob length is kept in the blob properties
+                if (!ISObject.ATTR_CONTENT_LENGTH.equals(entry.getKey())) {
+                    metadata.put(metadataName(entry.getKey()), entry.getValue());
+                }
+            }
+            blob.setMetadata(metadata);
+            long length = stuff instanceof SObject.InputStreamSObject ? -1 : stuff.getLength();
+            if (0 <= length && length < blockThreshold) {
+                singlePut(blob, is, length);
+            } else if (length < 0) {
+                // probe the first block to find out if the blob is small enough for single upload
+                byte[] head = new byte[blockSize];
+                int n = PartUploader.readFully(is, head);
+                if (n < blockSize) {
+                    singlePut(blob, new ByteArrayInputStream(head, 0, n), n);
+                } else {
+                    blockUpload(blob, is, head, blockSize);
+                }
+            } else {
+                int size = (int) Math.max(blockSize, (length + MAX_BLOCKS - 1) / MAX_BLOCKS);
+                blockUpload(blob, is, null, size);
             }
-            blob.uploadProperties();
-            blob.getMetadata().putAll(attrs);
-            blob.uploadMetadata();
         } catch (StorageException e) {
             throw handleException(fullPath, e);
-        } catch (Exception e) {
-            throw E.unexpected(e);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } catch (URISyntaxException e) {
+            throw E.unexpected(e, fullPath);
+        } finally {
+            IO.close(is);
         }
     }
 
+    private void singlePut(CloudBlockBlob blob, InputStream is, long length) throws StorageException, IOException {
+        BlobRequestOptions options = new BlobRequestOptions();
+        // make sure the SDK does not split the blob into blocks
+        options.setSingleBlobPutThresholdInBytes(MAX_SINGLE_PUT_SIZE);
+        blob.upload(is, length, null, options, null);
+    }
+
+    private void blockUpload(final CloudBlockBlob blob, InputStream is, byte[] head, int size) throws StorageException {
+        List<String> blockIds = new PartUploader<String>(size, blockConcurrency, blockRetries) {
+            @Override
+            protected String uploadPart(int partNumber, byte[] buf, int len) {
+                // block ids of a blob shall be of the same length
+                String blockId = Codec.encodeBase64(S.fmt("%06d", partNumber));
+                try {
+                    blob.uploadBlock(blockId, new ByteArrayInputStream(buf, 0, len), len);
+                } catch (StorageException e) {
+                    throw handleException(blob.getName(), e);
+                } catch (IOException e) {
+                    throw E.ioException(e);
+                }
+                return blockId;
+            }
+        }.upload(is, head);
+        List<BlockEntry> blocks = new ArrayList<>(blockIds.size());
+        for (String blockId : blockIds) {
+            blocks.add(new BlockEntry(blockId));
+        }
+        // uncommitted blocks are garbage collected by Azure if commit never happen
+        blob.commitBlockList(blocks);
+    }
+
     @Override
     protected StorageServiceBase newService(Map<String, String> conf) {
         return new AzureService(conf);
@@ -176,22 +430,112 @@ public class AzureService extends StorageServiceBase<AzureObject> implements ISt
 
     @Override
     protected InputStream doGetInputStream(String fullPath) {
+        return doGetInputStreamIfMatch(fullPath, 0, -1, null);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfChanged(String fullPath, String etag, long lastModified, Map<String, String> meta) {
+        AccessCondition condition = null != etag
+                ? AccessCondition.generateIfNoneMatchCondition(S.concat("\"", etag, "\""))
+                : AccessCondition.generateIfModifiedSinceCondition(new Date(lastModified));
         try {
             CloudBlockBlob blob = blobContainer.getBlockBlobReference(fullPath);
-            return blob.openInputStream();
+            InputStream is;
+            try {
+                is = openRange(blob, condition, 0, -1);
+            } catch (StorageException e) {
+                if (304 == e.getHttpStatusCode()) {
+                    // not modified
+                    return null;
+                }
+                throw e;
+            }
+            meta.putAll(attributes(blob));
+            return is;
         } catch (StorageException e) {
             throw handleException(fullPath, e);
-        } catch (Exception exception) {
-            throw E.unexpected(exception);
+        } catch (URISyntaxException e) {
+            throw E.unexpected(e, fullPath);
         }
     }
 
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return doGetInputStreamIfMatch(fullPath, offset, length, null);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        AccessCondition ifMatch = null == etag ? null : AccessCondition.generateIfMatchCondition(S.concat("\"", etag, "\""));
+        try {
+            CloudBlockBlob blob = blobContainer.getBlockBlobReference(fullPath);
+            return openRange(blob, ifMatch, offset, length);
+        } catch (StorageException e) {
+            throw handleException(fullPath, e);
+        } catch (URISyntaxException e) {
+            throw E.unexpected(e, fullPath);
+        }
+    }
+
+    // open the range of the blob version whose attributes are fetched with the
+    // condition specified, the subsequent requests fail if the blob is changed
+    // in the meantime. Ranges up to the download threshold are streamed, larger
+    // ranges are fetched in parallel
+    private InputStream openRange(CloudBlockBlob blob, AccessCondition condition, long offset, long length) throws StorageException {
+        if (0 < length && length < blob.getStreamMinimumReadSizeInBytes()) {
+            // do not read ahead far beyond the range
+            blob.setStreamMinimumReadSizeInBytes((int) Math.max(MIN_STREAM_READ_SIZE, length));
+        }
+        // fetches the attributes and pins the following reads to the etag
+        BlobInputStream is = blob.openInputStream(condition, null, null);
+        long blobLength = blob.getProperties().getLength();
+        if (offset > blobLength) {
+            IO.close(is);
+            throw E.invalidRange("offset is beyond the end of blob: %s", blob.getName());
+        }
+        long available = blobLength - offset;
+        long len = length < 0 ? available : Math.min(length, available);
+        if (len > downloadThreshold) {
+            IO.close(is);
+            return rangeInputStream(blob, offset, len);
+        }
+        try {
+            // repositions the stream without reading
+            is.skip(offset);
+        } catch (IOException e) {
+            IO.close(is);
+            throw E.ioException(e);
+        }
+        return len < available ? new BoundedInputStream(is, len) : is;
+    }
+
+    // read the range of the blob version whose attributes have been downloaded
+    // with ranges fetched in parallel, the requests fail if the blob is changed
+    // in the meantime
+    private InputStream rangeInputStream(final CloudBlockBlob blob, long offset, long length) {
+        final AccessCondition ifMatch = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        return new RangedInputStream(offset, length, downloadRangeSize, downloadConcurrency) {
+            @Override
+            protected int fetchRange(long offset, int len, byte[] buf, int bufOffset) throws Exception {
+                try {
+                    return blob.downloadRangeToByteArray(offset, (long) len, buf, bufOffset, ifMatch, null, null);
+                } catch (StorageException e) {
+                    throw handleException(blob.getName(), e);
+                }
+            }
+        };
+    }
+
     private static RuntimeException handleException(String key, StorageException e) {
         switch (e.getHttpStatusCode()) {
             case 404:
                 throw new ResourceNotFoundException(e, key);
             case 403:
                 throw new AccessDeniedException(e, key);
+            case 412:
+                throw E.unexpected(e, "storage object changed while being read: %s", key);
+            case 416:
+                throw E.invalidRange("requested range not satisfiable: %s", key);
             default:
                 throw E.unexpected(e, key);
         }
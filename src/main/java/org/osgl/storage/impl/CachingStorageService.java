@@ -0,0 +1,223 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.$;
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.IStorageService;
+import org.osgl.util.C;
+import org.osgl.util.E;
+import org.osgl.util.S;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A storage service that keeps a local disk copy of the objects stored in
+ * a remote storage service, e.g. {@link S3Service}.
+ *
+ * * Objects are written to the local cache and then to the remote service
+ * * Objects not in the local cache are read from the remote service and
+ *   saved into the local cache while being read
+ * * The least recently used objects are removed from the local cache once
+ *   the total size exceeds {@link #CONF_CACHE_MAX_SIZE}
+ *
+ * The cache index is persisted in the cache directory and reloaded when
+ * the service is created again with the same cache directory
+ */
+public class CachingStorageService extends StorageServiceBase<CachedObject> implements IStorageService {
+
+    /**
+     * The local directory to cache the storage objects
+     */
+    public static final String CONF_CACHE_DIR = "storage.cache.dir";
+
+    /**
+     * The maximum number of bytes of the objects kept in the cache directory.
+     *
+     * Default value: `1073741824`, i.e. 1GB
+     */
+    public static final String CONF_CACHE_MAX_SIZE = "storage.cache.maxSize";
+
+    private final StorageServiceBase<?> remote;
+    private final DiskCache diskCache;
+
+    /**
+     * Construct a caching storage service on top of the remote storage service.
+     *
+     * The service shares the id, context path, static web endpoint and key
+     * generator of the remote service
+     *
+     * @param remote the remote storage service
+     * @param conf   the configuration of the cache
+     */
+    public CachingStorageService(StorageServiceBase<?> remote, Map<String, String> conf) {
+        this(remote, newDiskCache(conf), delegateConf(remote));
+    }
+
+    private CachingStorageService(StorageServiceBase<?> remote, DiskCache diskCache, Map<String, String> conf) {
+        super(conf, CachedObject.class);
+        this.remote = remote;
+        this.diskCache = diskCache;
+        this.keygen = remote.keygen;
+    }
+
+    private static DiskCache newDiskCache(Map<String, String> conf) {
+        String dir = conf.get(CONF_CACHE_DIR);
+        if (S.blank(dir)) {
+            throw E.invalidConfiguration("cache dir not found in the configuration");
+        }
+        String s = conf.get(CONF_CACHE_MAX_SIZE);
+        long maxSize = S.blank(s) ? 1024L * 1024 * 1024 : Long.parseLong(s.trim());
+        Map<String, String> localConf = C.newMap(FileSystemService.CONF_HOME_DIR, dir);
+        return new DiskCache(new FileSystemService(localConf), maxSize);
+    }
+
+    /**
+     * Returns the number of bytes of the objects in the local cache
+     *
+     * @return the size of the local cache
+     */
+    public long cacheSize() {
+        return diskCache.size();
+    }
+
+    @Override
+    protected void doRemove(String fullPath) {
+        remote.doRemove(fullPath);
+        diskCache.remove(fullPath);
+    }
+
+    @Override
+    protected Map<String, String> doGetMeta(String fullPath) {
+        if (null != diskCache.get(fullPath)) {
+            return diskCache.getMeta(fullPath);
+        }
+        return remote.doGetMeta(fullPath);
+    }
+
+    @Override
+    protected Map<String, String> doGetStat(String fullPath) {
+        File file = diskCache.get(fullPath);
+        if (null != file) {
+            Map<String, String> stat = C.newMap(diskCache.getMeta(fullPath));
+            stat.put(ISObject.ATTR_CONTENT_LENGTH, S.string(file.length()));
+            return stat;
+        }
+        return remote.doGetStat(fullPath);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfChanged(String fullPath, String etag, long lastModified, Map<String, String> meta) {
+        // revalidate against the remote storage as the cached copy might be stale
+        InputStream is = remote.doGetInputStreamIfChanged(fullPath, etag, lastModified, meta);
+        if (null != is) {
+            diskCache.remove(fullPath);
+        }
+        return is;
+    }
+
+    @Override
+    protected InputStream doGetInputStream(final String fullPath) {
+        InputStream is = cachedInputStream(fullPath, 0, -1);
+        if (null != is) {
+            return is;
+        }
+        return diskCache.tee(fullPath, remote.doGetInputStream(fullPath), new $.F0<Map<String, String>>() {
+            @Override
+            public Map<String, String> apply() {
+                return remote.doGetMeta(fullPath);
+            }
+        });
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        InputStream is = cachedInputStream(fullPath, offset, length);
+        return null != is ? is : remote.doGetInputStream(fullPath, offset, length);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        InputStream is = cachedInputStream(fullPath, offset, length);
+        return null != is ? is : remote.doGetInputStreamIfMatch(fullPath, offset, length, etag);
+    }
+
+    private InputStream cachedInputStream(String fullPath, long offset, long length) {
+        if (null == diskCache.get(fullPath)) {
+            return null;
+        }
+        try {
+            return diskCache.getInputStream(fullPath, offset, length);
+        } catch (ResourceNotFoundException e) {
+            // evicted in the meantime
+            return null;
+        }
+    }
+
+    @Override
+    protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        File file = diskCache.write(fullPath, stuff, attrs);
+        try {
+            remote.doPut(fullPath, SObject.of(file), attrs);
+        } catch (RuntimeException e) {
+            diskCache.remove(fullPath);
+            throw e;
+        }
+        diskCache.admit(fullPath);
+    }
+
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        remote.doCopy(srcFullPath, dstFullPath);
+        diskCache.remove(dstFullPath);
+    }
+
+    @Override
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        remote.doMove(srcFullPath, dstFullPath);
+        diskCache.remove(srcFullPath);
+        diskCache.remove(dstFullPath);
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(String fullPrefix, String delimiter) {
+        return relist(remote, remote.doList(fullPrefix, delimiter));
+    }
+
+    @Override
+    protected ISObject newSObject(String key) {
+        return new CachedObject(key, this);
+    }
+
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new CachedObject(key, attrs, this);
+    }
+
+    @Override
+    protected StorageServiceBase newService(Map<String, String> conf) {
+        return new CachingStorageService(remote, diskCache, conf);
+    }
+}
@@ -0,0 +1,378 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.util.E;
+import org.osgl.util.S;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of storage object content bounded by the total number of bytes.
+ *
+ * The cache applies a W-TinyLFU policy. New entries are added into a small LRU
+ * window. Entries evicted from the window compete with the least recently used
+ * entry of the main space, and the one that has been requested less frequently,
+ * as estimated by a {@link FrequencySketch}, is evicted. The main space is a
+ * segmented LRU: entries enter the probation segment and are promoted to the
+ * protected segment when they are hit again.
+ */
+public class ContentCache {
+
+    /**
+     * A snapshot of the cache statistics
+     */
+    public static final class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long size;
+        private final long weight;
+
+        private Stats(long hitCount, long missCount, long evictionCount, long size, long weight) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        public long hitCount() {
+            return hitCount;
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        public double hitRate() {
+            long requests = hitCount + missCount;
+            return 0 == requests ? 1.0 : (double) hitCount / requests;
+        }
+
+        public long evictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return the number of entries in the cache
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return the number of bytes in the cache
+         */
+        public long weight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return S.fmt("ContentCache.Stats[hits=%s, misses=%s, evictions=%s, size=%s, weight=%s]",
+                    hitCount, missCount, evictionCount, size, weight);
+        }
+    }
+
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Node {
+        final String key;
+        byte[] value;
+        Segment segment;
+        Node prev;
+        Node next;
+
+        Node(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // access ordered doubly linked list, the head is the least recently used node
+    private static final class AccessQueue {
+        Node head;
+        Node tail;
+        long weight;
+
+        void add(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (null == tail) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.value.length;
+        }
+
+        void remove(Node node) {
+            if (null == node.prev) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (null == node.next) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.value.length;
+        }
+
+        void moveToTail(Node node) {
+            if (tail != node) {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    private final long maximumWeight;
+    private final long maximumEntryWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final Map<String, Node> data = new HashMap<>();
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final FrequencySketch sketch;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    // bumped on each invalidation, so content read before an invalidation is not cached
+    private long generation;
+
+    /**
+     * Construct a content cache.
+     *
+     * @param maximumWeight      the maximum number of bytes held in the cache
+     * @param maximumEntryWeight the maximum number of bytes of a single entry
+     */
+    public ContentCache(long maximumWeight, long maximumEntryWeight) {
+        E.illegalArgumentIf(maximumWeight <= 0, "maximum weight shall be positive");
+        this.maximumWeight = maximumWeight;
+        this.maximumEntryWeight = Math.min(maximumWeight, maximumEntryWeight);
+        this.windowMaximum = Math.max(1L, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5;
+        // assume 4KB per entry at average
+        this.sketch = new FrequencySketch(maximumWeight / 4096);
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public long maximumEntryWeight() {
+        return maximumEntryWeight;
+    }
+
+    /**
+     * Returns the content cached by key, or `null` if not found.
+     *
+     * The access is recorded no matter if the key is found or not, so that
+     * content being requested frequently will be admitted into the cache.
+     *
+     * Note the byte array returned shall not be modified by the caller
+     *
+     * @param key the cache key
+     * @return the content or `null`
+     */
+    public synchronized byte[] get(String key) {
+        sketch.increment(key);
+        Node node = data.get(key);
+        if (null == node) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        onHit(node);
+        return node.value;
+    }
+
+    /**
+     * Put content into the cache. Content larger than the maximum entry
+     * weight is not cached.
+     *
+     * Note the byte array shall not be modified once it is put into the cache
+     *
+     * @param key     the cache key
+     * @param content the content
+     */
+    public synchronized void put(String key, byte[] content) {
+        Node node = data.get(key);
+        if (content.length > maximumEntryWeight) {
+            if (null != node) {
+                remove(node);
+            }
+            return;
+        }
+        if (null != node) {
+            AccessQueue queue = queueOf(node);
+            queue.remove(node);
+            node.value = content;
+            queue.add(node);
+        } else {
+            node = new Node(key, content);
+            node.segment = Segment.WINDOW;
+            data.put(key, node);
+            window.add(node);
+        }
+        evict();
+    }
+
+    /**
+     * Returns the current generation of the cache, which is changed on each
+     * invalidation. Obtain the generation before reading the content from the
+     * storage service and pass it to {@link #put(String, byte[], long)}, so that
+     * content read before a concurrent update is not cached
+     *
+     * @return the current generation
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Put content into the cache unless the cache has been invalidated since
+     * the generation specified
+     *
+     * @param key        the cache key
+     * @param content    the content
+     * @param generation the {@link #generation() generation} when the content was requested
+     * @return `true` if the content was put into the cache
+     */
+    public synchronized boolean put(String key, byte[] content, long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        put(key, content);
+        return true;
+    }
+
+    public synchronized void invalidate(String key) {
+        generation++;
+        Node node = data.get(key);
+        if (null != node) {
+            remove(node);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hitCount, missCount, evictionCount, data.size(),
+                window.weight + probation.weight + protectedQueue.weight);
+    }
+
+    private void onHit(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                window.moveToTail(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.segment = Segment.PROTECTED;
+                protectedQueue.add(node);
+                while (protectedQueue.weight > protectedMaximum) {
+                    Node demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    demoted.segment = Segment.PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            default:
+                protectedQueue.moveToTail(node);
+        }
+    }
+
+    private void evict() {
+        while (window.weight > windowMaximum) {
+            Node candidate = window.head;
+            window.remove(candidate);
+            admit(candidate);
+        }
+    }
+
+    // the candidate evicted from window shall either replace the victims from
+    // the main space or be evicted
+    private void admit(Node candidate) {
+        long mainMaximum = maximumWeight - windowMaximum;
+        if (candidate.value.length > mainMaximum) {
+            evict(candidate);
+            return;
+        }
+        int candidateFrequency = sketch.frequency(candidate.key);
+        while (probation.weight + protectedQueue.weight + candidate.value.length > mainMaximum) {
+            Node victim = null != probation.head ? probation.head : protectedQueue.head;
+            if (sketch.frequency(victim.key) >= candidateFrequency) {
+                evict(candidate);
+                return;
+            }
+            queueOf(victim).remove(victim);
+            evict(victim);
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.add(candidate);
+    }
+
+    private void evict(Node node) {
+        data.remove(node.key);
+        evictionCount++;
+    }
+
+    private void remove(Node node) {
+        queueOf(node).remove(node);
+        data.remove(node.key);
+    }
+
+    private AccessQueue queueOf(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the whole content of an input stream into a byte array.
+ *
+ * If the length of the content is known, the array is allocated once with
+ * the exact size and the content is read into it directly. Otherwise the
+ * content is copied through a per thread transfer buffer into a growing
+ * array, which is returned without a final copy if it happens to be full.
+ */
+final class ContentReader {
+
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    // the max array size supported by most JVMs
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    // exposes the internal buffer to avoid the copy of toByteArray
+    private static final class Output extends ByteArrayOutputStream {
+        Output(int size) {
+            super(size);
+        }
+
+        byte[] content() {
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+    }
+
+    private ContentReader() {
+    }
+
+    /**
+     * Read the content of the input stream. The input stream is closed
+     * after the content is read.
+     *
+     * @param is             the input stream
+     * @param expectedLength the length of the content, `-1` if unknown
+     * @return the content
+     */
+    static byte[] read(InputStream is, long expectedLength) {
+        try {
+            if (0 <= expectedLength && expectedLength <= MAX_ARRAY_SIZE) {
+                byte[] content = new byte[(int) expectedLength];
+                int n = PartUploader.readFully(is, content);
+                if (n < content.length) {
+                    // content is shorter than expected
+                    return Arrays.copyOf(content, n);
+                }
+                int b = is.read();
+                if (b < 0) {
+                    return content;
+                }
+                // content is longer than expected
+                Output out = new Output(content.length + TRANSFER_BUFFER_SIZE);
+                out.write(content);
+                out.write(b);
+                return copy(is, out);
+            }
+            return copy(is, new Output(TRANSFER_BUFFER_SIZE));
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(is);
+        }
+    }
+
+    private static byte[] copy(InputStream is, Output out) throws IOException {
+        byte[] buf = transferBuffer.get();
+        for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.content();
+    }
+}
@@ -0,0 +1,427 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.IStorageService;
+import org.osgl.util.C;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A storage service that stores the content of the objects in a remote
+ * storage service, e.g. {@link S3Service}, by the SHA-256 hash of the
+ * content, so that objects of identical content are stored and uploaded
+ * only once.
+ *
+ * * `put` computes the SHA-256 of the content while streaming it. The content
+ *   is uploaded to `<prefix>/ab/cd/<sha256>` unless it already exists. The
+ *   object itself is stored as an empty pointer object carrying the meta
+ *   attributes and the hash in the {@link #ATTR_CONTENT_SHA256} attribute
+ * * each pointer object registers a reference marker under
+ *   `<prefix>/ab/cd/<sha256>.refs/`. The content is removed along with the
+ *   last reference marker when the objects referencing it are removed or
+ *   overwritten
+ * * reads are redirected from the pointer object to the content
+ *
+ * The keys under the prefix are reserved: they are not returned by
+ * {@link #list(String, String)}, and cannot be written or removed through
+ * this service.
+ *
+ * Reference updates of the same content are serialized within the JVM only,
+ * as the remote storage provides no conditional write. Sharing the remote
+ * storage with services in other processes is not supported: concurrent
+ * `put` and `remove` of identical content from different processes might
+ * remove the content still referenced.
+ */
+public class DedupStorageService extends StorageServiceBase<DedupObject> implements IStorageService {
+
+    /**
+     * The key prefix of the content and the reference markers.
+     *
+     * Default value: `.dedup`
+     */
+    public static final String CONF_DEDUP_PREFIX = "storage.dedup.prefix";
+
+    /**
+     * The meta attribute of the SHA-256 hex of the content
+     */
+    public static final String ATTR_CONTENT_SHA256 = "content-sha256";
+
+    /**
+     * The meta attribute of the length of the content, kept on the pointer
+     * object as the stored pointer object is empty
+     */
+    public static final String ATTR_CONTENT_SIZE = "content-size";
+
+    private static final int LOCK_STRIPES = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StorageServiceBase<?> remote;
+    private final String prefix;
+    private final Object[] locks;
+
+    /**
+     * Construct a deduplicating storage service on top of the remote storage service.
+     *
+     * The service shares the id, context path, static web endpoint and key
+     * generator of the remote service
+     *
+     * @param remote the remote storage service
+     * @param conf   the configuration of the service
+     */
+    public DedupStorageService(StorageServiceBase<?> remote, Map<String, String> conf) {
+        this(remote, dedupPrefix(conf), newLocks(), delegateConf(remote));
+    }
+
+    private DedupStorageService(StorageServiceBase<?> remote, String prefix, Object[] locks, Map<String, String> conf) {
+        super(conf, DedupObject.class);
+        this.remote = remote;
+        this.prefix = prefix;
+        this.locks = locks;
+        this.keygen = remote.keygen;
+    }
+
+    private static String dedupPrefix(Map<String, String> conf) {
+        String s = conf.get(CONF_DEDUP_PREFIX);
+        return S.blank(s) ? ".dedup" : S.strip(s.trim(), "/", "/");
+    }
+
+    private static Object[] newLocks() {
+        Object[] locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    @Override
+    protected void doRemove(String fullPath) {
+        checkNotReserved(fullPath);
+        String hash = hashOf(fullPath);
+        remote.doRemove(fullPath);
+        if (null != hash) {
+            release(hash, fullPath);
+        }
+    }
+
+    @Override
+    protected Map<String, String> doGetMeta(String fullPath) {
+        Map<String, String> meta = remote.doGetMeta(fullPath);
+        String size = meta.get(ATTR_CONTENT_SIZE);
+        if (null != size) {
+            meta.put(ISObject.ATTR_CONTENT_LENGTH, size);
+        }
+        return meta;
+    }
+
+    @Override
+    protected Map<String, String> doGetStat(String fullPath) {
+        Map<String, String> stat = remote.doGetStat(fullPath);
+        String hash = stat.get(ATTR_CONTENT_SHA256);
+        if (null != hash) {
+            Map<String, String> content = remote.doGetStat(contentPath(hash));
+            stat = C.newMap(stat);
+            stat.put(ISObject.ATTR_CONTENT_LENGTH, content.get(ISObject.ATTR_CONTENT_LENGTH));
+        }
+        return stat;
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath) {
+        return remote.doGetInputStream(resolve(fullPath));
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return remote.doGetInputStream(resolve(fullPath), offset, length);
+    }
+
+    @Override
+    protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        checkNotReserved(fullPath);
+        File spool = null;
+        try {
+            if (stuff instanceof SObject.InputStreamSObject) {
+                // the content can only be read once, spool it for hashing and uploading
+                spool = File.createTempFile("osgl-dedup", null);
+                IO.write(stuff.asInputStream(), IO.outputStream(spool));
+                ISObject spooled = SObject.of(spool);
+                spooled.setAttributes(stuff.getAttributes());
+                stuff = spooled;
+            }
+            String size = S.string(stuff.getLength());
+            attrs.put(ISObject.ATTR_CONTENT_LENGTH, size);
+            attrs.put(ATTR_CONTENT_SIZE, size);
+            String hash = sha256(stuff.asInputStream());
+            String old = hashOf(fullPath);
+            synchronized (lockOf(hash)) {
+                // register the reference before checking the content, so that
+                // the content is not removed in the meantime
+                remote.doPut(refPath(hash, fullPath), SObject.of(new byte[0]), C.<String, String>newMap());
+                String contentPath = contentPath(hash);
+                if (!exists(contentPath)) {
+                    Map<String, String> contentAttrs = C.newMap();
+                    String contentType = attrs.get(ISObject.ATTR_CONTENT_TYPE);
+                    if (null != contentType) {
+                        contentAttrs.put(ISObject.ATTR_CONTENT_TYPE, contentType);
+                    }
+                    remote.doPut(contentPath, stuff, contentAttrs);
+                }
+            }
+            attrs.put(ATTR_CONTENT_SHA256, hash);
+            remote.doPut(fullPath, SObject.of(new byte[0]), attrs);
+            if (null != old && !old.equals(hash)) {
+                release(old, fullPath);
+            }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            if (null != spool) {
+                IO.delete(spool);
+            }
+        }
+    }
+
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        checkNotReserved(dstFullPath);
+        String hash = hashOf(srcFullPath);
+        if (null == hash) {
+            remote.doCopy(srcFullPath, dstFullPath);
+            return;
+        }
+        String old = hashOf(dstFullPath);
+        synchronized (lockOf(hash)) {
+            remote.doPut(refPath(hash, dstFullPath), SObject.of(new byte[0]), C.<String, String>newMap());
+        }
+        remote.doCopy(srcFullPath, dstFullPath);
+        if (null != old && !old.equals(hash)) {
+            release(old, dstFullPath);
+        }
+    }
+
+    @Override
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        checkNotReserved(srcFullPath);
+        checkNotReserved(dstFullPath);
+        String hash = hashOf(srcFullPath);
+        if (null == hash) {
+            remote.doMove(srcFullPath, dstFullPath);
+            return;
+        }
+        String old = hashOf(dstFullPath);
+        synchronized (lockOf(hash)) {
+            remote.doPut(refPath(hash, dstFullPath), SObject.of(new byte[0]), C.<String, String>newMap());
+            remote.doMove(srcFullPath, dstFullPath);
+            remote.doRemove(refPath(hash, srcFullPath));
+        }
+        if (null != old && !old.equals(hash)) {
+            release(old, dstFullPath);
+        }
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(String fullPrefix, String delimiter) {
+        final Iterator<ISObject> itr = relist(remote, new Unreserved(remote.doList(fullPrefix, delimiter)));
+        return new Iterator<ISObject>() {
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext();
+            }
+
+            @Override
+            public ISObject next() {
+                ISObject sobj = itr.next();
+                // pointer objects are empty and listings carry no meta attributes,
+                // leave the length to be loaded along with the meta attributes
+                if (sobj instanceof StorageObject) {
+                    Map<String, String> attrs = ((StorageObject) sobj).loadedAttributes();
+                    if ("0".equals(attrs.get(ISObject.ATTR_CONTENT_LENGTH))) {
+                        attrs.remove(ISObject.ATTR_CONTENT_LENGTH);
+                        sobj = listedObject(keyWithContextPath(sobj.getKey()), attrs);
+                    }
+                }
+                return sobj;
+            }
+
+            @Override
+            public void remove() {
+                throw E.unsupport();
+            }
+        };
+    }
+
+    // skips the content and the reference markers listed by the remote service
+    private class Unreserved implements Iterator<ISObject> {
+        private final Iterator<ISObject> itr;
+        private ISObject next;
+
+        Unreserved(Iterator<ISObject> itr) {
+            this.itr = itr;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (null == next && itr.hasNext()) {
+                ISObject sobj = itr.next();
+                if (!isReserved(remote.keyWithContextPath(sobj.getKey()))) {
+                    next = sobj;
+                }
+            }
+            return null != next;
+        }
+
+        @Override
+        public ISObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ISObject sobj = next;
+            next = null;
+            return sobj;
+        }
+
+        @Override
+        public void remove() {
+            throw E.unsupport();
+        }
+    }
+
+    @Override
+    protected boolean isSameStorage(StorageServiceBase other) {
+        return other instanceof DedupStorageService && remote.isSameStorage(((DedupStorageService) other).remote);
+    }
+
+    @Override
+    protected ISObject newSObject(String key) {
+        return new DedupObject(key, this);
+    }
+
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new DedupObject(key, attrs, this);
+    }
+
+    @Override
+    protected StorageServiceBase newService(Map<String, String> conf) {
+        return new DedupStorageService(remote, prefix, locks, conf);
+    }
+
+    // remove the reference of the object to the content, and the content if there is no reference left
+    private void release(String hash, String fullPath) {
+        synchronized (lockOf(hash)) {
+            remote.doRemove(refPath(hash, fullPath));
+            if (!remote.doList(refPrefix(hash), null).hasNext()) {
+                remote.doRemove(contentPath(hash));
+            }
+        }
+    }
+
+    // returns the path of the content if the object is a pointer object
+    private String resolve(String fullPath) {
+        String hash = hashOf(fullPath);
+        return null == hash ? fullPath : contentPath(hash);
+    }
+
+    private String hashOf(String fullPath) {
+        try {
+            return remote.doGetMeta(fullPath).get(ATTR_CONTENT_SHA256);
+        } catch (ResourceNotFoundException e) {
+            return null;
+        }
+    }
+
+    private boolean exists(String fullPath) {
+        try {
+            remote.doGetStat(fullPath);
+            return true;
+        } catch (ResourceNotFoundException e) {
+            return false;
+        }
+    }
+
+    // the content and the reference markers are kept under the prefix
+    private boolean isReserved(String fullPath) {
+        String root = remote.keyWithContextPath(prefix);
+        return fullPath.startsWith(root) && (fullPath.length() == root.length() || fullPath.charAt(root.length()) == '/');
+    }
+
+    private void checkNotReserved(String fullPath) {
+        E.illegalArgumentIf(isReserved(fullPath), "key reserved for deduplicated content: %s", fullPath);
+    }
+
+    private String contentPath(String hash) {
+        // shared by the sub folders of the service
+        return remote.keyWithContextPath(S.concat(prefix, "/", hash.substring(0, 2), "/", hash.substring(2, 4), "/", hash));
+    }
+
+    private String refPrefix(String hash) {
+        return contentPath(hash) + ".refs/";
+    }
+
+    // the name of the reference marker is the hash of the path of the pointer object
+    private String refPath(String hash, String fullPath) {
+        try {
+            return refPrefix(hash) + sha256(new ByteArrayInputStream(fullPath.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+    }
+
+    private Object lockOf(String hash) {
+        return locks[hash.hashCode() & (LOCK_STRIPES - 1)];
+    }
+
+    private static String sha256(InputStream is) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw E.unexpected(e);
+        }
+        try (DigestInputStream dis = new DigestInputStream(is, digest)) {
+            byte[] buf = new byte[8192];
+            while (dis.read(buf) > -1) ;
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,116 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.E;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of direct byte buffers used to copy content between channels.
+ *
+ * Direct buffers are expensive to allocate and are released only when
+ * garbage collected, so they are kept in the pool and reused. The pool
+ * holds at most {@link #MAX_POOLED} buffers, buffers released when the
+ * pool is full are left to the garbage collector.
+ */
+final class DirectBufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The max number of consecutive writes accepting no byte before a copy gives up
+     */
+    static final int MAX_ZERO_WRITES = 16;
+
+    private static final int MAX_POOLED = 64;
+
+    private static final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private DirectBufferPool() {
+    }
+
+    static ByteBuffer acquire() {
+        ByteBuffer buf = pool.poll();
+        return null == buf ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buf;
+    }
+
+    static void release(ByteBuffer buf) {
+        buf.clear();
+        pool.offer(buf);
+    }
+
+    /**
+     * Check the channel is in blocking mode. A non-blocking channel could
+     * accept no byte on write, which would make a copy spin.
+     *
+     * @param channel the target channel of a copy
+     * @throws IllegalArgumentException if the channel is in non-blocking mode
+     */
+    static void requireBlocking(WritableByteChannel channel) {
+        E.illegalArgumentIf(channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking(),
+                "target channel shall be in blocking mode");
+    }
+
+    /**
+     * Copy all content from the source channel to the target channel
+     * through a pooled direct buffer.
+     *
+     * The target channel shall be in blocking mode. The copy fails if the
+     * target accepts no byte for {@link #MAX_ZERO_WRITES} consecutive writes.
+     *
+     * @param src the source channel
+     * @param dst the target channel
+     * @return the number of bytes copied
+     * @throws IOException if any IO error encountered
+     */
+    static long copy(ReadableByteChannel src, WritableByteChannel dst) throws IOException {
+        requireBlocking(dst);
+        ByteBuffer buf = acquire();
+        try {
+            long count = 0;
+            int zeroWrites = 0;
+            while (src.read(buf) >= 0 || buf.position() > 0) {
+                buf.flip();
+                if (buf.hasRemaining()) {
+                    int n = dst.write(buf);
+                    if (n > 0) {
+                        zeroWrites = 0;
+                    } else if (++zeroWrites >= MAX_ZERO_WRITES) {
+                        throw new IOException("target channel does not accept data");
+                    }
+                    count += n;
+                }
+                buf.compact();
+            }
+            return count;
+        } finally {
+            release(buf);
+        }
+    }
+}
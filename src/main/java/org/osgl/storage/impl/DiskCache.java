@@ -0,0 +1,425 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.$;
+import org.osgl.logging.L;
+import org.osgl.logging.Logger;
+import org.osgl.storage.ISObject;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.*;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * A size bounded local disk cache of storage objects backed by a {@link FileSystemService}.
+ *
+ * Cached objects are tracked in an LRU index. Changes to the index are appended
+ * to a journal file in the cache directory, which is replayed when the cache
+ * is reopened, so the cached objects survive restarts. Note the access order
+ * is not journaled, entries are restored in the order they were added.
+ */
+final class DiskCache {
+
+    private static final Logger logger = L.get(DiskCache.class);
+
+    private static final String JOURNAL = ".journal";
+    private static final String TMP_DIR = ".tmp";
+
+    private final FileSystemService local;
+    private final long maxSize;
+    private final File root;
+    private final File tmpDir;
+    private final File journalFile;
+
+    // local path -> object size, in access order
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private Writer journal;
+    private int journalLines;
+
+    DiskCache(FileSystemService local, long maxSize) {
+        E.illegalArgumentIf(maxSize <= 0, "max size shall be positive");
+        this.local = $.requireNotNull(local);
+        this.maxSize = maxSize;
+        this.root = local.root();
+        this.tmpDir = new File(root, TMP_DIR);
+        this.journalFile = new File(root, JOURNAL);
+        IO.delete(tmpDir, true);
+        if (!tmpDir.mkdirs()) {
+            throw E.ioException("Cannot create dir: " + tmpDir.getAbsolutePath());
+        }
+        if (journalFile.exists()) {
+            replay();
+        } else {
+            scan();
+        }
+        trim();
+        compact();
+    }
+
+    long maxSize() {
+        return maxSize;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the cached file of the object specified
+     *
+     * @param fullPath the full path of the storage object
+     * @return the cached file or `null` if the object is not cached
+     */
+    File get(String fullPath) {
+        String path = localPath(fullPath);
+        synchronized (this) {
+            if (null == index.get(path)) {
+                return null;
+            }
+        }
+        File file = local.getFile(path);
+        if (!file.exists()) {
+            remove(fullPath);
+            return null;
+        }
+        return file;
+    }
+
+    Map<String, String> getMeta(String fullPath) {
+        return local.doGetMeta(localPath(fullPath));
+    }
+
+    InputStream getInputStream(String fullPath, long offset, long length) {
+        return local.doGetInputStream(localPath(fullPath), offset, length);
+    }
+
+    /**
+     * Write the object into the cache directory. The object is not tracked
+     * by the cache until {@link #admit(String)} is called
+     *
+     * @param fullPath the full path of the storage object
+     * @param stuff    the storage object
+     * @param attrs    the meta attributes
+     * @return the file written
+     */
+    File write(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        String path = localPath(fullPath);
+        remove(fullPath);
+        local.doPut(path, stuff, attrs);
+        return local.getFile(path);
+    }
+
+    /**
+     * Start tracking the object written by {@link #write(String, ISObject, Map)}.
+     * The object is removed if it is larger than the cache size
+     *
+     * @param fullPath the full path of the storage object
+     */
+    void admit(String fullPath) {
+        String path = localPath(fullPath);
+        long len = local.getFile(path).length();
+        if (len > maxSize) {
+            local.doRemove(path);
+        } else {
+            track(path, len);
+        }
+    }
+
+    void remove(String fullPath) {
+        String path = localPath(fullPath);
+        synchronized (this) {
+            Long len = index.remove(path);
+            if (null != len) {
+                size -= len;
+                journal("-", path);
+            }
+        }
+        local.doRemove(path);
+    }
+
+    /**
+     * Returns an input stream that reads from the input stream specified and
+     * saves the content into the cache once the input stream is fully read.
+     *
+     * @param fullPath the full path of the storage object
+     * @param is       the input stream of the storage object
+     * @param meta     supplies the meta attributes when the content is fully read
+     * @return the input stream to read the content
+     */
+    InputStream tee(String fullPath, InputStream is, $.Func0<Map<String, String>> meta) {
+        try {
+            File tmp = File.createTempFile("tee", null, tmpDir);
+            return new TeeInputStream(is, localPath(fullPath), tmp, meta);
+        } catch (IOException e) {
+            logger.warn(e, "error creating temp file, object will not be cached: %s", fullPath);
+            return is;
+        }
+    }
+
+    private void commit(String path, File tmp, Map<String, String> attrs) {
+        long len = tmp.length();
+        if (len > maxSize) {
+            IO.delete(tmp);
+            return;
+        }
+        local.doPutFile(path, tmp, attrs);
+        track(path, len);
+    }
+
+    private void track(String path, long len) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long old = index.put(path, len);
+            size += len - (null == old ? 0L : old);
+            journal("+" + len + " ", path);
+            Iterator<Map.Entry<String, Long>> itr = index.entrySet().iterator();
+            while (size > maxSize && itr.hasNext()) {
+                Map.Entry<String, Long> entry = itr.next();
+                itr.remove();
+                size -= entry.getValue();
+                journal("-", entry.getKey());
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String key : evicted) {
+            local.doRemove(key);
+        }
+    }
+
+    private synchronized void trim() {
+        Iterator<Map.Entry<String, Long>> itr = index.entrySet().iterator();
+        while (size > maxSize && itr.hasNext()) {
+            Map.Entry<String, Long> entry = itr.next();
+            itr.remove();
+            size -= entry.getValue();
+            local.doRemove(entry.getKey());
+        }
+    }
+
+    private void journal(String op, String path) {
+        if (null == journal) {
+            return;
+        }
+        try {
+            journal.write(op);
+            journal.write(path);
+            journal.write('\n');
+            journal.flush();
+        } catch (IOException e) {
+            logger.warn(e, "error writing cache journal");
+        }
+        if (++journalLines > 2 * index.size() + 1000) {
+            compact();
+        }
+    }
+
+    // rewrite the journal with the current index
+    private synchronized void compact() {
+        IO.close(journal);
+        File tmp = new File(tmpDir, JOURNAL);
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Map.Entry<String, Long> entry : index.entrySet()) {
+                    w.write("+" + entry.getValue() + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                w.close();
+            }
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+            journalLines = index.size();
+        } catch (IOException e) {
+            logger.warn(e, "error writing cache journal, cache index will not be persisted");
+            journal = null;
+        }
+    }
+
+    private void replay() {
+        List<String> lines = IO.readLines(journalFile);
+        for (String line : lines) {
+            if (line.startsWith("+")) {
+                int pos = line.indexOf(' ');
+                if (pos < 0) {
+                    continue;
+                }
+                String path = line.substring(pos + 1);
+                long len = Long.parseLong(line.substring(1, pos));
+                Long old = index.put(path, len);
+                size += len - (null == old ? 0L : old);
+            } else if (line.startsWith("-")) {
+                Long len = index.remove(line.substring(1));
+                if (null != len) {
+                    size -= len;
+                }
+            }
+        }
+        // drop entries whose file has been removed
+        Iterator<Map.Entry<String, Long>> itr = index.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, Long> entry = itr.next();
+            File file = local.getFile(entry.getKey());
+            if (!file.isFile() || file.length() != entry.getValue()) {
+                itr.remove();
+                size -= entry.getValue();
+                local.doRemove(entry.getKey());
+            }
+        }
+    }
+
+    // rebuild the index from the files in the cache directory
+    private void scan() {
+        final Path rootPath = root.toPath();
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(tmpDir.toPath()) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String name = file.getFileName().toString();
+                    if (!MetaStore.isMetaFile(name) && !JOURNAL.equals(name) && !FileSystemService.isTempFile(name)) {
+                        String path = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                        index.put(path, attrs.size());
+                        size += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+    }
+
+    // the path of the object in the local file system service
+    private static String localPath(String fullPath) {
+        return fullPath.startsWith("/") ? fullPath.substring(1) : fullPath;
+    }
+
+    private class TeeInputStream extends FilterInputStream {
+
+        private final String path;
+        private final File tmp;
+        private final $.Func0<Map<String, String>> meta;
+        private OutputStream os;
+        private long written;
+
+        TeeInputStream(InputStream in, String path, File tmp, $.Func0<Map<String, String>> meta) throws IOException {
+            super(in);
+            this.path = path;
+            this.tmp = tmp;
+            this.meta = meta;
+            this.os = new BufferedOutputStream(new FileOutputStream(tmp));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                complete();
+            } else {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                complete();
+            } else {
+                write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // the skipped content will not be written into the cache
+            abort();
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (null == os) {
+                return;
+            }
+            written += len;
+            if (written > maxSize) {
+                abort();
+                return;
+            }
+            try {
+                os.write(b, off, len);
+            } catch (IOException e) {
+                logger.warn(e, "error writing cache file, object will not be cached: %s", path);
+                abort();
+            }
+        }
+
+        private void complete() {
+            if (null == os) {
+                return;
+            }
+            OutputStream os = this.os;
+            this.os = null;
+            try {
+                os.close();
+                commit(path, tmp, meta.apply());
+            } catch (IOException | RuntimeException e) {
+                logger.warn(e, "error caching object: %s", path);
+                IO.delete(tmp);
+            }
+        }
+
+        private void abort() {
+            if (null == os) {
+                return;
+            }
+            IO.close(os);
+            os = null;
+            IO.delete(tmp);
+        }
+    }
+}
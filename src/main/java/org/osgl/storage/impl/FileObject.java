@@ -20,22 +20,168 @@ package org.osgl.storage.impl;
  * #L%
  */
 
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.exception.UnexpectedIOException;
 import org.osgl.storage.ISObject;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 
 class FileObject extends StorageObject<FileObject, FileSystemService> {
 
+    private MappedByteBuffer mapped;
+
     FileObject(String key, FileSystemService fileSystemService) {
         super(key, fileSystemService);
-        buf(); // eager load buf
+        if (!fileSystemService.isLazyMeta()) {
+            buf(); // eager load buf
+        }
+    }
+
+    FileObject(String key, Map<String, String> attrs, FileSystemService fileSystemService) {
+        super(key, attrs, fileSystemService);
     }
 
     @Override
     public long getLength() {
+        if (null != codec()) {
+            return super.getLength();
+        }
         return buf().getLength();
     }
 
+    @Override
+    public boolean isValid() {
+        buf();
+        return super.isValid();
+    }
+
+    @Override
+    public Throwable getException() {
+        buf();
+        return super.getException();
+    }
+
+    /**
+     * Returns a read only byte buffer of the file content. Files not smaller than
+     * {@link FileSystemService#CONF_MMAP_THRESHOLD} are memory mapped, the mapping
+     * is shared by the buffers returned by this object. The mapping is released
+     * when all the buffers are garbage collected, or by {@link #release()} if
+     * {@link FileSystemService#CONF_MMAP_UNMAP_ON_RELEASE} is enabled
+     *
+     * @return the byte buffer
+     */
+    @Override
+    public ByteBuffer asByteBuffer() throws UnexpectedIOException {
+        long length = getLength();
+        if (length < svc.mmapThreshold() || null != codec()) {
+            return super.asByteBuffer();
+        }
+        E.unsupportedIf(length > Integer.MAX_VALUE, "file too large to be mapped: %s", getKey());
+        synchronized (this) {
+            if (null == mapped) {
+                FileChannel channel = open();
+                try {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } catch (IOException e) {
+                    throw E.ioException(e);
+                } finally {
+                    // the mapping remains valid after the channel is closed
+                    IO.close(channel);
+                }
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        if (null != mapped) {
+            // the buffers handed out might still be in use, unmapping
+            // them could crash the JVM unless the application opts in
+            if (svc.unmapOnRelease()) {
+                Unmapper.unmap(mapped);
+            }
+            mapped = null;
+        }
+        super.release();
+    }
+
+    @Override
+    public ReadableByteChannel asChannel() throws UnexpectedIOException {
+        if (null != codec()) {
+            return super.asChannel();
+        }
+        return open();
+    }
+
+    /**
+     * Transfer the file content to the target channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * which allows the operating system to send the file to a socket without copying it into user space.
+     *
+     * The target channel shall be in blocking mode. The transfer fails if the target accepts no
+     * byte for {@link DirectBufferPool#MAX_ZERO_WRITES} consecutive attempts
+     *
+     * @param target the target channel
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the target channel is in non-blocking mode
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws UnexpectedIOException {
+        if (null != codec()) {
+            return super.transferTo(target);
+        }
+        DirectBufferPool.requireBlocking(target);
+        FileChannel channel = open();
+        try {
+            long size = channel.size();
+            long position = 0;
+            int zeroWrites = 0;
+            while (position < size) {
+                long n = channel.transferTo(position, size - position, target);
+                if (n > 0) {
+                    zeroWrites = 0;
+                } else if (channel.size() < size) {
+                    // file truncated in the meantime
+                    break;
+                } else if (++zeroWrites >= DirectBufferPool.MAX_ZERO_WRITES) {
+                    throw new IOException("target channel does not accept data");
+                }
+                position += n;
+            }
+            return position;
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(channel);
+        }
+    }
+
+    private FileChannel open() {
+        String fullPath = svc.keyWithContextPath(getKey());
+        try {
+            return FileChannel.open(svc.getFile(fullPath).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new ResourceNotFoundException(e, fullPath);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+    }
+
     @Override
     protected ISObject loadBuf() {
+        if (null != codec()) {
+            return super.loadBuf();
+        }
         String fullPath = svc.keyWithContextPath(getKey());
         return SObject.of(fullPath, svc.getFile(fullPath));
     }
@@ -28,10 +28,19 @@ import org.osgl.storage.IStorageService;
 import org.osgl.util.C;
 import org.osgl.util.E;
 import org.osgl.util.IO;
+import org.osgl.util.S;
 
 import java.io.*;
-import java.util.Map;
-import java.util.Properties;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FileSystemService extends StorageServiceBase<FileObject> implements IStorageService {
 
@@ -54,7 +63,85 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
     @Deprecated
     public static final String CONF_FS_GET_NO_GET = "storage.fs.get.noGet";
 
+    /**
+     * Files not smaller than this threshold, in bytes, are memory mapped when
+     * accessed via {@link StorageObject#asByteBuffer()}.
+     *
+     * Default value: `1048576`, i.e. 1MB
+     */
+    public static final String CONF_MMAP_THRESHOLD = "storage.fs.mmap.threshold";
+
+    /**
+     * When set to `true`, the memory mapping of a file is unmapped as soon as
+     * the object is {@link StorageObject#release() released}, instead of when
+     * the mapped buffer is garbage collected.
+     *
+     * The JVM might crash if any buffer returned by {@link StorageObject#asByteBuffer()}
+     * is accessed after the object is released. Enable it only if the application
+     * guarantees the buffers are no longer used by then.
+     *
+     * Default value: `false`
+     */
+    public static final String CONF_MMAP_UNMAP_ON_RELEASE = "storage.fs.mmap.unmapOnRelease";
+
+    /**
+     * When set to `true`, the content and attributes written by `put` are
+     * flushed to disk before they are published, and the directory is
+     * flushed after, so that a completed `put` survives a system crash.
+     * The flushes of concurrent writers are batched with group commit.
+     *
+     * Note the content and the attributes are published in two steps, thus
+     * a crash between the two steps could leave the new content with the
+     * old attributes.
+     *
+     * Default value: `false`, i.e. content is published atomically but not durably
+     */
+    public static final String CONF_FSYNC = "storage.fs.fsync";
+
+    /**
+     * Specify where the meta attributes of the objects are stored:
+     *
+     * * `properties`: a `<name>.attr` properties file per object
+     * * `xattr`: a user extended attribute of the object file, falls back to
+     *   `index` if the file system does not support extended attributes
+     * * `index`: a compact binary index file per directory
+     *
+     * With `xattr` and `index` store, the attributes found in legacy `.attr`
+     * files are migrated into the store on read.
+     *
+     * Default value: `properties`
+     */
+    public static final String CONF_META_STORE = "storage.fs.meta";
+
+    /**
+     * Specify the maximum number of directories cached by the service so that
+     * resolving the file of an object in a known directory does not touch
+     * the file system. `0` disables the cache.
+     *
+     * Default value: `4096`
+     */
+    public static final String CONF_DIR_CACHE_SIZE = "storage.fs.dirCache.size";
+
+    // prefix of the temp files written before being published by rename
+    private static final String TMP_PREFIX = ".~";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    {
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
     private File root_;
+    private GroupCommit groupCommit;
+    private MetaStore metaStore;
+    // maps the path of directory relative to root to the directory known to exist
+    private ConcurrentMap<String, File> dirCache;
+    private int dirCacheSize;
+    private long mmapThreshold;
+    private boolean unmapOnRelease;
 
     public FileSystemService(Map<String, String> conf) {
         super(conf, FileObject.class);
@@ -71,6 +158,12 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
         }
         super.configure(conf, "fs");
 
+        mmapThreshold = Long.parseLong(getConfValue(conf, CONF_MMAP_THRESHOLD, "1048576"));
+        unmapOnRelease = Boolean.parseBoolean(getConfValue(conf, CONF_MMAP_UNMAP_ON_RELEASE, "false"));
+        dirCacheSize = Integer.parseInt(getConfValue(conf, CONF_DIR_CACHE_SIZE, "4096"));
+        dirCache = new ConcurrentHashMap<>();
+        groupCommit = Boolean.parseBoolean(getConfValue(conf, CONF_FSYNC, "false")) ? new GroupCommit() : null;
+
         String s = conf.get(CONF_HOME_DIR);
         root_ = new File(s);
         if (!root_.exists() && !root_.mkdirs()) {
@@ -78,6 +171,15 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
         } else if (!root_.isDirectory()) {
             throw E.invalidConfiguration("Root dir specified is not a directory: %s", root_.getAbsolutePath());
         }
+        metaStore = MetaStore.of(getConfValue(conf, CONF_META_STORE, "properties"), root_);
+    }
+
+    long mmapThreshold() {
+        return mmapThreshold;
+    }
+
+    boolean unmapOnRelease() {
+        return unmapOnRelease;
     }
 
     @SuppressWarnings("unused")
@@ -87,68 +189,331 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
 
     @Override
     protected void doRemove(String fullPath) {
-        doOperate(fullPath, DELETE_FILE, DELETE_FILE);
+        File file = getFile(fullPath);
+        synchronized (lockOf(fullPath)) {
+            IO.delete(file);
+            try {
+                removeMeta(file);
+            } catch (IOException e) {
+                throw E.ioException(e);
+            }
+        }
     }
 
     @Override
     protected Map<String, String> doGetMeta(String fullPath) {
-        File attrFile = getFile(fullPath + ".attr");
-        if (!attrFile.canRead()) {
-            return C.newMap();
+        File file = getFile(fullPath);
+        try {
+            Map<String, String> attrs = metaStore.read(file);
+            if (null == attrs && MetaStore.PROPERTIES != metaStore) {
+                attrs = migrate(fullPath, file);
+            }
+            return null == attrs ? C.<String, String>newMap() : attrs;
+        } catch (IOException e) {
+            throw E.ioException(e);
         }
-        Properties p = IO.loadProperties(attrFile);
-        return $.cast(p);
+    }
+
+    // move the attributes in the legacy `.attr` file into the meta store
+    private Map<String, String> migrate(String fullPath, File file) throws IOException {
+        Map<String, String> attrs = MetaStore.PROPERTIES.read(file);
+        if (null == attrs) {
+            return null;
+        }
+        synchronized (lockOf(fullPath)) {
+            if (file.isFile()) {
+                metaStore.prepare(file, file, attrs).commit();
+                MetaStore.PROPERTIES.remove(file);
+            }
+        }
+        return attrs;
+    }
+
+    @Override
+    protected Map<String, String> doGetStat(String fullPath) {
+        File file = getFile(fullPath);
+        if (!file.isFile()) {
+            throw new ResourceNotFoundException(fullPath);
+        }
+        Map<String, String> stat = C.newMap(doGetMeta(fullPath));
+        long length = file.length();
+        long lastModified = file.lastModified();
+        stat.put(ISObject.ATTR_CONTENT_LENGTH, S.string(length));
+        stat.put(ATTR_LAST_MODIFIED, S.string(lastModified));
+        stat.put(ATTR_ETAG, etag(lastModified, length));
+        return stat;
+    }
+
+    /**
+     * Returns the etag of a file composed of its last modified timestamp and length, e.g. `18d3f2a9c10-1f4`
+     */
+    static String etag(long lastModified, long length) {
+        return S.concat(Long.toHexString(lastModified), "-", Long.toHexString(length));
     }
 
     protected File doGetFile(String fullPath) {
-        return doOperate(fullPath, $.F.<File>identity(), null);
+        return doOperate(fullPath, $.F.<File>identity());
     }
 
     @Override
     protected InputStream doGetInputStream(String fullPath) {
-        return doOperate(fullPath, GET_INPUT_STREAM, null);
+        return doOperate(fullPath, GET_INPUT_STREAM);
     }
 
-    protected File getFile(String fullPath) {
-        fullPath = fullPath.replace('\\', '/');
-        String[] path = fullPath.split("/");
-        int len = path.length;
-        assert len > 0;
-        File folder = root_;
-        for (int i = 0; i < len - 1; ++i) {
-            folder = IO.child(folder, path[i]);
-            if (folder.exists() && !folder.isDirectory()) {
-                throw E.ioException("cannot store the object into storage: %s is not a directory", folder);
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return doOperate(fullPath, getInputStream(offset, length));
+    }
+
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        transfer(srcFullPath, dstFullPath, false);
+    }
+
+    @Override
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        transfer(srcFullPath, dstFullPath, true);
+    }
+
+    @Override
+    protected boolean isSameStorage(StorageServiceBase other) {
+        return other instanceof FileSystemService && root_.getAbsoluteFile().equals(((FileSystemService) other).root_.getAbsoluteFile());
+    }
+
+    private void transfer(String srcFullPath, String dstFullPath, boolean move) {
+        int stripe1 = stripeOf(srcFullPath);
+        int stripe2 = stripeOf(dstFullPath);
+        // acquire the stripe locks in the order of stripe index to avoid dead lock
+        synchronized (locks[Math.min(stripe1, stripe2)]) {
+            synchronized (locks[Math.max(stripe1, stripe2)]) {
+                doTransfer(srcFullPath, dstFullPath, move);
             }
         }
-        return new File(folder, path[len - 1]);
     }
 
-    private <T> T doOperate(String fullPath, $.Function<File, T> blobOperator, $.Function<File, T> attrOperator) {
-        return doOperate(fullPath, blobOperator, attrOperator, false);
+    private void doTransfer(String srcFullPath, String dstFullPath, boolean move) {
+        File src = getFile(srcFullPath);
+        if (!src.exists()) {
+            throw new ResourceNotFoundException(src);
+        }
+        File dst = prepare(dstFullPath);
+        try {
+            Map<String, String> attrs = doGetMeta(srcFullPath);
+            if (move) {
+                publish(dst, src, metaStore.prepare(dst, src, attrs));
+                removeMeta(src);
+            } else {
+                File tmp = tmpFile(dst);
+                MetaStore.Pending pending = MetaStore.NO_OP;
+                try {
+                    Files.copy(src.toPath(), tmp.toPath());
+                    pending = metaStore.prepare(dst, tmp, attrs);
+                    publish(dst, tmp, pending);
+                } finally {
+                    pending.discard();
+                    deleteIfExists(tmp);
+                }
+            }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
     }
 
-    private <T> T doOperate(String fullPath, $.Function<File, T> blobOperator, $.Function<File, T> attrOperator, boolean mkdir) {
-        File file = getFile(fullPath);
-        T retVal = null;
-        if (mkdir) {
-            File dir = file.getParentFile();
-            if (!dir.exists() && !dir.mkdirs()) {
+    /**
+     * Publish the temp file of the blob to its final location with atomic
+     * rename, so readers see either the old or the new content but not a
+     * partially written one, and then commit the attributes.
+     *
+     * The blob and the attributes are published in two steps, not as one
+     * atomic operation: a reader not holding the stripe lock could see the
+     * new content with the old attributes in between, and a crash in between
+     * leaves the new content with the old attributes
+     */
+    private void publish(File file, File tmp, MetaStore.Pending pending) throws IOException {
+        if (null != groupCommit) {
+            List<File> staged = new ArrayList<>(pending.staged());
+            staged.add(tmp);
+            groupCommit.sync(staged);
+        }
+        move(tmp, file);
+        pending.commit();
+        if (null != groupCommit) {
+            List<File> committed = new ArrayList<>(pending.committed());
+            committed.add(file.getParentFile());
+            groupCommit.sync(committed);
+        }
+    }
+
+    private void removeMeta(File file) throws IOException {
+        metaStore.remove(file);
+        if (MetaStore.PROPERTIES != metaStore) {
+            MetaStore.PROPERTIES.remove(file);
+        }
+    }
+
+    private Object lockOf(String fullPath) {
+        return locks[stripeOf(fullPath)];
+    }
+
+    private static int stripeOf(String fullPath) {
+        int h = fullPath.hashCode();
+        h ^= h >>> 16;
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    static File tmpFile(File file) {
+        String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return new File(file.getParentFile(), S.concat(TMP_PREFIX, file.getName(), ".", suffix));
+    }
+
+    /**
+     * Check if a file name is the name of a temp file that is not yet published
+     *
+     * @param name the file name
+     * @return `true` if the name is a temp file name
+     */
+    static boolean isTempFile(String name) {
+        return name.startsWith(TMP_PREFIX);
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists()) {
+            IO.delete(file);
+        }
+    }
+
+    static void move(File src, File dst) throws IOException {
+        try {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(final String fullPrefix, final String delimiter) {
+        if (null != delimiter && !"/".equals(delimiter)) {
+            throw E.unsupport("File system storage does not support delimiter: %s", delimiter);
+        }
+        final int pos = fullPrefix.lastIndexOf('/');
+        return new PagedIterator<ISObject>() {
+            // directories to visit, in the form of `a/b/`
+            private Deque<String> dirs = new ArrayDeque<>(C.list(fullPrefix.substring(0, pos + 1)));
+
+            @Override
+            protected List<ISObject> nextPage() {
+                if (dirs.isEmpty()) {
+                    return null;
+                }
+                String dir = dirs.pop();
+                File folder = dir.isEmpty() ? root_ : new File(root_, dir);
+                String[] names = folder.list();
+                List<ISObject> page = new ArrayList<>();
+                if (null == names) {
+                    return page;
+                }
+                Arrays.sort(names);
+                List<String> subDirs = new ArrayList<>();
+                for (String name : names) {
+                    String path = dir + name;
+                    File file = new File(folder, name);
+                    if (file.isDirectory()) {
+                        String dirPath = path + "/";
+                        if (!dirPath.startsWith(fullPrefix)) {
+                            if (fullPrefix.startsWith(dirPath)) {
+                                subDirs.add(dirPath);
+                            }
+                        } else if (null != delimiter) {
+                            page.add(listedPrefix(dirPath));
+                        } else {
+                            subDirs.add(dirPath);
+                        }
+                    } else if (path.startsWith(fullPrefix) && !MetaStore.isMetaFile(name) && !isTempFile(name)) {
+                        Map<String, String> attrs = C.newMap();
+                        long length = file.length();
+                        long lastModified = file.lastModified();
+                        attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(length));
+                        attrs.put(ATTR_LAST_MODIFIED, S.string(lastModified));
+                        attrs.put(ATTR_ETAG, etag(lastModified, length));
+                        page.add(listedObject(path, attrs));
+                    }
+                }
+                for (int i = subDirs.size() - 1; i >= 0; --i) {
+                    dirs.push(subDirs.get(i));
+                }
+                return page;
+            }
+        };
+    }
+
+    protected File getFile(String fullPath) {
+        return getFile(fullPath, false);
+    }
+
+    private File getFile(String fullPath, boolean mkdir) {
+        fullPath = fullPath.replace('\\', '/');
+        int pos = fullPath.lastIndexOf('/');
+        if (pos < 0) {
+            return new File(root_, fullPath);
+        }
+        return new File(resolveDir(fullPath.substring(0, pos), mkdir), fullPath.substring(pos + 1));
+    }
+
+    /*
+     * Resolve the directory of the path relative to root. Directories known
+     * to exist are cached thus resolved without touching the file system on
+     * read, and with one `stat` call on write in case the directory has been
+     * removed by others.
+     */
+    private File resolveDir(String dirPath, boolean mkdir) {
+        File dir = dirCache.get(dirPath);
+        if (null != dir) {
+            if (!mkdir || dir.isDirectory()) {
+                return dir;
+            }
+            evictDir(dir);
+        }
+        dir = root_;
+        boolean exists = true;
+        for (String name : dirPath.split("/")) {
+            dir = IO.child(dir, name);
+            if (exists && !dir.isDirectory()) {
+                if (dir.exists()) {
+                    throw E.ioException("cannot store the object into storage: %s is not a directory", dir);
+                }
+                // the sub directories do not exist either
+                exists = false;
+            }
+        }
+        if (!exists && mkdir) {
+            if (!dir.mkdirs() && !dir.isDirectory()) {
                 throw E.ioException("Cannot create dir: " + dir.getAbsolutePath());
             }
+            exists = true;
         }
-        if (null != blobOperator) {
-            retVal = blobOperator.apply(file);
+        if (exists && dirCacheSize > 0) {
+            if (dirCache.size() >= dirCacheSize) {
+                dirCache.clear();
+            }
+            dirCache.put(dirPath, dir);
         }
-        if (null != attrOperator) {
-            File fAttr = new File(file.getParent(), file.getName() + ".attr");
-            if (null != retVal) {
-                attrOperator.apply(fAttr);
-            } else {
-                retVal = attrOperator.apply(fAttr);
+        return dir;
+    }
+
+    // remove the cached directory and its sub directories
+    private void evictDir(File dir) {
+        String prefix = dir.getPath();
+        Iterator<File> itr = dirCache.values().iterator();
+        while (itr.hasNext()) {
+            String path = itr.next().getPath();
+            if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == File.separatorChar)) {
+                itr.remove();
             }
         }
-        return retVal;
+    }
+
+    private <T> T doOperate(String fullPath, $.Function<File, T> blobOperator) {
+        return blobOperator.apply(getFile(fullPath));
     }
 
     @Override
@@ -156,9 +521,56 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
         return new FileObject(key, this);
     }
 
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new FileObject(key, attrs, this);
+    }
+
     @Override
     protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
-        doOperate(fullPath, writeBlob(stuff), writeAttributes(attrs), true);
+        File file = prepare(fullPath);
+        File tmp = tmpFile(file);
+        MetaStore.Pending pending = MetaStore.NO_OP;
+        try {
+            writeBlob(stuff, tmp);
+            pending = metaStore.prepare(file, tmp, null == attrs ? C.<String, String>newMap() : attrs);
+            synchronized (lockOf(fullPath)) {
+                publish(file, tmp, pending);
+            }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            pending.discard();
+            deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Move a file into the storage at fullPath specified along with the
+     * meta attributes
+     *
+     * @param fullPath the full path of the storage object
+     * @param file     the file to be moved into the storage
+     * @param attrs    the meta attributes of the storage object
+     */
+    void doPutFile(String fullPath, File file, Map<String, String> attrs) {
+        File target = prepare(fullPath);
+        MetaStore.Pending pending = MetaStore.NO_OP;
+        try {
+            pending = metaStore.prepare(target, file, null == attrs ? C.<String, String>newMap() : attrs);
+            synchronized (lockOf(fullPath)) {
+                publish(target, file, pending);
+            }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            pending.discard();
+        }
+    }
+
+    // returns the file of the full path, with the parent dir created
+    private File prepare(String fullPath) {
+        return getFile(fullPath, true);
     }
 
     @Override
@@ -179,39 +591,35 @@ public class FileSystemService extends StorageServiceBase<FileObject> implements
         }
     };
 
-    private static final $.Visitor<File> DELETE_FILE = new $.Visitor<File>() {
-        @Override
-        public void visit(File file) throws $.Break {
-            IO.delete(file);
-        }
-    };
-
-    private static $.Visitor<File> writeBlob(final ISObject sobj) {
-        return new $.Visitor<File>() {
+    private static $.Transformer<File, InputStream> getInputStream(final long offset, final long length) {
+        return new $.Transformer<File, InputStream>() {
             @Override
-            public void visit(File file) throws $.Break {
-                OutputStream os = new BufferedOutputStream(IO.outputStream(file));
-                IO.write(IO.buffered(sobj.asInputStream()), os);
+            public InputStream transform(File file) {
+                if (!file.exists()) {
+                    throw new ResourceNotFoundException(file);
+                }
+                if (!file.canRead()) {
+                    throw new AccessDeniedException(file);
+                }
+                if (offset > file.length()) {
+                    throw E.invalidRange("offset %s is beyond the end of file: %s", offset, file);
+                }
+                FileChannel channel = null;
+                try {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    channel.position(offset);
+                    InputStream is = Channels.newInputStream(channel);
+                    return length < 0 ? is : new BoundedInputStream(is, length);
+                } catch (IOException e) {
+                    IO.close(channel);
+                    throw E.ioException(e);
+                }
             }
         };
     }
 
-    private static $.Visitor<File> writeAttributes(final Map<String, String> attrs) {
-        return new $.Visitor<File>() {
-            @Override
-            public void visit(File file) throws $.Break {
-                if (null != attrs && !attrs.isEmpty()) {
-                    OutputStream os = IO.buffered(IO.outputStream(file));
-                    Properties p = new Properties();
-                    p.putAll(attrs);
-                    try {
-                        p.store(os, "");
-                    } catch (IOException e) {
-                        throw E.ioException(e);
-                    }
-                    IO.close(os);
-                }
-            }
-        };
+    private static void writeBlob(ISObject sobj, File tmp) {
+        OutputStream os = new BufferedOutputStream(IO.outputStream(tmp));
+        IO.write(IO.buffered(sobj.asInputStream()), os);
     }
 }
@@ -0,0 +1,147 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Flushes files to disk with `fsync`, batching the requests of concurrent
+ * writers.
+ *
+ * A writer joins the current batch. The first writer of a batch becomes its
+ * leader: it waits until the previous batch has been flushed, closes the batch
+ * and flushes all files of the batch, while the other writers of the batch
+ * wait for it. Writers arriving during the flush join the next batch. Thus
+ * under high concurrency one round of `fsync` calls serves many writers, and
+ * a directory shared by several writers is flushed only once.
+ */
+final class GroupCommit {
+
+    private static final class Batch {
+        final Set<File> files = new LinkedHashSet<>();
+        boolean done;
+        IOException error;
+    }
+
+    private Batch current = new Batch();
+    private boolean syncing;
+
+    /**
+     * Flush the files specified to disk. The files could be regular files or
+     * directories. Returns after all the files have been flushed.
+     *
+     * @param files the files to be flushed
+     */
+    void sync(Collection<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        Batch batch;
+        boolean leader;
+        synchronized (this) {
+            batch = current;
+            leader = batch.files.isEmpty();
+            batch.files.addAll(files);
+            if (leader) {
+                try {
+                    while (syncing) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    // abandon the batch so that its followers do not wait forever
+                    current = new Batch();
+                    batch.error = new InterruptedIOException("interrupted while waiting for fsync");
+                    batch.done = true;
+                    notifyAll();
+                    Thread.currentThread().interrupt();
+                    throw E.ioException(batch.error);
+                }
+                // close the batch, writers coming from now on join the next batch
+                current = new Batch();
+                syncing = true;
+            }
+        }
+        if (leader) {
+            IOException error = null;
+            try {
+                for (File file : batch.files) {
+                    force(file);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                batch.error = error;
+                batch.done = true;
+                syncing = false;
+                notifyAll();
+            }
+        } else {
+            synchronized (this) {
+                while (!batch.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw E.ioException(new InterruptedIOException("interrupted while waiting for fsync"));
+                    }
+                }
+            }
+        }
+        if (null != batch.error) {
+            throw E.ioException(batch.error);
+        }
+    }
+
+    private static void force(File file) throws IOException {
+        boolean dir = file.isDirectory();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), dir ? StandardOpenOption.READ : StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            if (dir) {
+                // some platforms, e.g. Windows, do not support opening a directory
+                return;
+            }
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!dir) {
+                throw e;
+            }
+        } finally {
+            IO.close(channel);
+        }
+    }
+}
@@ -20,9 +20,15 @@ package org.osgl.storage.impl;
  * #L%
  */
 
+import java.util.Map;
+
 class KodoObject extends StorageObject<KodoObject, KodoService> {
 
     KodoObject(String key, KodoService kodoService) {
         super(key, kodoService);
     }
+
+    KodoObject(String key, Map<String, String> attrs, KodoService kodoService) {
+        super(key, attrs, kodoService);
+    }
 }
\ No newline at end of file
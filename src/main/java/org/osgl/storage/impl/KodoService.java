@@ -22,27 +22,45 @@ package org.osgl.storage.impl;
 
 import com.qiniu.common.QiniuException;
 import com.qiniu.common.Zone;
+import com.qiniu.http.Client;
 import com.qiniu.storage.BucketManager;
 import com.qiniu.storage.Configuration;
+import com.qiniu.storage.Recorder;
 import com.qiniu.storage.UploadManager;
+import com.qiniu.storage.model.BatchStatus;
 import com.qiniu.storage.model.FileInfo;
+import com.qiniu.storage.model.FileListing;
+import com.qiniu.storage.persistent.FileRecorder;
 import com.qiniu.util.Auth;
+import com.qiniu.util.Json;
 import com.qiniu.util.StringMap;
+import com.qiniu.util.UrlSafeBase64;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import org.osgl.$;
 import org.osgl.exception.AccessDeniedException;
 import org.osgl.exception.ResourceNotFoundException;
 import org.osgl.storage.ISObject;
 import org.osgl.storage.IStorageService;
+import org.osgl.util.C;
 import org.osgl.util.E;
+import org.osgl.util.IO;
 import org.osgl.util.S;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TimeZone;
 
 /**
  * Implement {@link org.osgl.storage.IStorageService} on 七牛云存储-kodo
@@ -55,9 +73,62 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
     public static final String CONF_PERMISSION = "storage.kodo.bucket.permission";
     public static final String CONF_DOMAIN = "storage.kodo.domain";
 
+    /**
+     * Objects with size larger than or equal to this threshold, in bytes, are
+     * uploaded in chunked mode: the content is split into 4MB blocks which are
+     * uploaded in parallel and then assembled into the object. Objects with
+     * unknown size are uploaded in chunked mode if they are larger than one block.
+     *
+     * Default value: `8388608`, i.e. 8MB
+     */
+    public static final String CONF_CHUNKED_THRESHOLD = "storage.kodo.chunked.threshold";
+
+    /**
+     * The max number of blocks of one object uploaded in parallel, which is
+     * also the max number of block buffers held in memory by one upload.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_CHUNKED_CONCURRENCY = "storage.kodo.chunked.concurrency";
+
+    /**
+     * The max number of retries of a failed block upload.
+     *
+     * Default value: `3`
+     */
+    public static final String CONF_CHUNKED_RETRIES = "storage.kodo.chunked.retries";
+
+    /**
+     * The directory of recorder files that keep the progress of chunked
+     * uploads of local files. An interrupted upload of the same file to
+     * the same key resumes from the blocks that have been uploaded.
+     *
+     * Default value: `osgl-storage-kodo` under the `java.io.tmpdir` directory
+     */
+    public static final String CONF_CHUNKED_RECORDER_DIR = "storage.kodo.chunked.recorderDir";
+
     public static final String BUCKET_PUB = "public";
     public static final String BUCKET_PRI = "private";
 
+    // the max number of items returned by one list request
+    private static final int LIST_LIMIT = 1000;
+
+    // the max number of operations in one batch request
+    private static final int BATCH_LIMIT = 1000;
+
+    // the status code of a batch request some operations of which failed
+    private static final int PARTIAL_SUCCESS = 298;
+
+    // the status code of an operation on an object that does not exist
+    private static final int NO_SUCH_FILE = 612;
+
+    // the prefix of the user defined meta data names, the only parameters
+    // of an upload other than user variables that are stored with the object
+    private static final String META_PREFIX = "x-qn-meta-";
+
+    // the block size of chunked upload is fixed by Kodo
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
     private static OkHttpClient httpClient;
     private String bucket;
     private String permission;
@@ -65,7 +136,13 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
 
     private BucketManager bucketManager;
     private UploadManager uploadManager;
+    private Configuration configuration;
+    private Client client;
+    private Recorder recorder;
     private Auth auth;
+    private long chunkedThreshold;
+    private int chunkedConcurrency;
+    private int chunkedRetries;
 
     public KodoService(Map<String, String> conf) {
         super(conf, KodoObject.class);
@@ -96,11 +173,25 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
             E.invalidConfiguration("The permission fields need 'public' or 'private'");
         }
 
+        chunkedThreshold = Long.parseLong(getConfValue(conf, CONF_CHUNKED_THRESHOLD, "8388608"));
+        chunkedConcurrency = Integer.parseInt(getConfValue(conf, CONF_CHUNKED_CONCURRENCY, "4"));
+        chunkedRetries = Integer.parseInt(getConfValue(conf, CONF_CHUNKED_RETRIES, "3"));
+        String recorderDir = conf.get(CONF_CHUNKED_RECORDER_DIR);
+        if (S.blank(recorderDir)) {
+            recorderDir = new File(System.getProperty("java.io.tmpdir"), "osgl-storage-kodo").getPath();
+        }
+        try {
+            recorder = new FileRecorder(recorderDir);
+        } catch (IOException e) {
+            throw E.invalidConfiguration(e, "cannot create kodo recorder dir: %s", recorderDir);
+        }
+
         auth = Auth.create(accessKey, secretKey);
-        Configuration c = new Configuration(Zone.autoZone());
+        configuration = new Configuration(Zone.autoZone());
 
-        bucketManager = new BucketManager(auth, c);
-        uploadManager = new UploadManager(c);
+        bucketManager = new BucketManager(auth, configuration);
+        uploadManager = new UploadManager(configuration);
+        client = new Client(configuration);
         httpClient = new OkHttpClient();
     }
 
@@ -113,19 +204,224 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
         }
     }
 
+    @Override
+    protected void doRemoveAll(List<String> fullPaths) {
+        for (int i = 0; i < fullPaths.size(); i += BATCH_LIMIT) {
+            List<String> batch = fullPaths.subList(i, Math.min(i + BATCH_LIMIT, fullPaths.size()));
+            BucketManager.BatchOperations ops = new BucketManager.BatchOperations();
+            ops.addDeleteOp(bucket, batch.toArray(new String[batch.size()]));
+            com.qiniu.http.Response response;
+            try {
+                response = bucketManager.batch(ops);
+            } catch (QiniuException e) {
+                if (PARTIAL_SUCCESS != e.code() || null == e.response) {
+                    throw handleException(batch.get(0), e);
+                }
+                response = e.response;
+            }
+            if (PARTIAL_SUCCESS == response.statusCode) {
+                checkBatchStatus(batch, response);
+            }
+        }
+    }
+
+    // removing an object that does not exist is not an error
+    private static void checkBatchStatus(List<String> batch, com.qiniu.http.Response response) {
+        BatchStatus[] statuses;
+        try {
+            statuses = response.jsonToObject(BatchStatus[].class);
+        } catch (QiniuException e) {
+            throw handleException(batch.get(0), e);
+        }
+        for (int i = 0; i < statuses.length; ++i) {
+            BatchStatus status = statuses[i];
+            if (200 != status.code && NO_SUCH_FILE != status.code) {
+                throw E.unexpected("error removing %s: %s", batch.get(i),
+                        null == status.data ? status.code : status.data.error);
+            }
+        }
+    }
+
     @Override
     protected Map<String, String> doGetMeta(String fullPath) {
+        // the stat model of the SDK does not carry the user defined meta data
+        String url = configuration.rsHost(auth.accessKey, bucket) + "/stat/" + BucketManager.encodedEntry(bucket, fullPath);
         try {
-            FileInfo stat = bucketManager.stat(bucket, fullPath);
-            return $.copy(stat).to(Map.class);
+            String body = client.get(url, auth.authorization(url)).bodyString();
+            Map<String, String> attrs = attributes(Json.decode(body, FileInfo.class));
+            Object meta = Json.decode(body).get("x-qn-meta");
+            if (meta instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) meta).entrySet()) {
+                    attrs.put(S.string(entry.getKey()), S.string(entry.getValue()));
+                }
+            }
+            return attrs;
         } catch (QiniuException e) {
             throw handleException(fullPath, e);
         }
     }
 
 
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        try {
+            bucketManager.copy(bucket, srcFullPath, bucket, dstFullPath, true);
+        } catch (QiniuException e) {
+            throw handleException(srcFullPath, e);
+        }
+    }
+
+    @Override
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        try {
+            bucketManager.move(bucket, srcFullPath, bucket, dstFullPath, true);
+        } catch (QiniuException e) {
+            throw handleException(srcFullPath, e);
+        }
+    }
+
+    @Override
+    protected boolean isSameStorage(StorageServiceBase other) {
+        return other instanceof KodoService && S.eq(bucket, ((KodoService) other).bucket);
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(final String fullPrefix, final String delimiter) {
+        return new PagedIterator<ISObject>() {
+            private String marker;
+            private boolean eof;
+
+            @Override
+            protected List<ISObject> nextPage() {
+                if (eof) {
+                    return null;
+                }
+                FileListing listing;
+                try {
+                    listing = bucketManager.listFiles(bucket, fullPrefix, marker, LIST_LIMIT, delimiter);
+                } catch (QiniuException e) {
+                    throw handleException(fullPrefix, e);
+                }
+                marker = listing.marker;
+                eof = listing.isEOF();
+                List<ISObject> page = new ArrayList<>();
+                if (null != listing.commonPrefixes) {
+                    for (String prefix : listing.commonPrefixes) {
+                        page.add(listedPrefix(prefix));
+                    }
+                }
+                if (null != listing.items) {
+                    for (FileInfo info : listing.items) {
+                        page.add(listedObject(info.key, attributes(info)));
+                    }
+                }
+                return page;
+            }
+        };
+    }
+
+    private static Map<String, String> attributes(FileInfo info) {
+        Map<String, String> attrs = C.newMap();
+        attrs.put("key", info.key);
+        attrs.put("hash", info.hash);
+        attrs.put("fsize", S.string(info.fsize));
+        attrs.put("putTime", S.string(info.putTime));
+        attrs.put("type", S.string(info.type));
+        attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(info.fsize));
+        attrs.put(ATTR_ETAG, info.hash);
+        if (null != info.mimeType) {
+            attrs.put("mimeType", info.mimeType);
+            attrs.put(ISObject.ATTR_CONTENT_TYPE, info.mimeType);
+        }
+        if (null != info.endUser) {
+            attrs.put("endUser", info.endUser);
+        }
+        return attrs;
+    }
+
     @Override
     protected InputStream doGetInputStream(String fullPath) {
+        return Objects.requireNonNull(download(fullPath).body()).byteStream();
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfChanged(String fullPath, String etag, long lastModified, Map<String, String> meta) {
+        Response resp = null != etag
+                ? download(fullPath, "If-None-Match", S.concat("\"", etag, "\""))
+                : download(fullPath, "If-Modified-Since", httpDate(lastModified));
+        if (null == resp) {
+            return null;
+        }
+        String s = resp.header("ETag");
+        if (null != s) {
+            meta.put(ATTR_ETAG, unquote(s));
+        }
+        s = resp.header("Content-Length");
+        if (null != s) {
+            meta.put(ISObject.ATTR_CONTENT_LENGTH, s);
+        }
+        s = resp.header("Content-Type");
+        if (null != s) {
+            meta.put(ISObject.ATTR_CONTENT_TYPE, s);
+        }
+        for (String name : resp.headers().names()) {
+            String lowerCase = name.toLowerCase();
+            if (lowerCase.startsWith(META_PREFIX)) {
+                meta.put(lowerCase.substring(META_PREFIX.length()), resp.header(name));
+            }
+        }
+        Date date = resp.headers().getDate("Last-Modified");
+        if (null != date) {
+            meta.put(ATTR_LAST_MODIFIED, S.string(date.getTime()));
+        }
+        return Objects.requireNonNull(resp.body()).byteStream();
+    }
+
+    private static String httpDate(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(timestamp));
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return doGetInputStreamIfMatch(fullPath, offset, length, null);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        StringBuilder range = new StringBuilder("bytes=").append(offset).append("-");
+        if (length > 0) {
+            range.append(offset + length - 1);
+        }
+        Response resp = null == etag
+                ? download(fullPath, "Range", range.toString())
+                : download(fullPath, "Range", range.toString(), "If-Match", S.concat("\"", etag, "\""));
+        InputStream is = Objects.requireNonNull(resp.body()).byteStream();
+        if (206 == resp.code()) {
+            return is;
+        }
+        // server ignored the range header and returned the whole content
+        try {
+            BoundedInputStream.skipFully(is, offset);
+        } catch (IOException e) {
+            IO.close(is);
+            throw E.ioException(e);
+        } catch (RuntimeException e) {
+            IO.close(is);
+            throw e;
+        }
+        return length < 0 ? is : new BoundedInputStream(is, length);
+    }
+
+    /**
+     * Download the object with the request headers specified.
+     *
+     * @param fullPath the full path of the object
+     * @param headers  the request header names and values
+     * @return the response, or `null` if the object is not modified
+     */
+    private Response download(String fullPath, String... headers) {
 
         String baseUrl = S.msgFmt("http://{0}/{1}", domain, fullPath);
 
@@ -133,17 +429,29 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
             baseUrl = auth.privateDownloadUrl(baseUrl);
         }
 
-        Request req = new Request.Builder().url(baseUrl).build();
+        Request.Builder builder = new Request.Builder().url(baseUrl);
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.header(headers[i], headers[i + 1]);
+        }
+        Request req = builder.build();
         try {
             Response resp = httpClient.newCall(req).execute();
             if (resp.isSuccessful()) {
-                return Objects.requireNonNull(resp.body()).byteStream();
+                return resp;
             }
             switch (resp.code()) {
+                case 304:
+                    IO.close(resp);
+                    return null;
                 case 404:
                     throw new ResourceNotFoundException(fullPath);
                 case 403:
                     throw new AccessDeniedException(fullPath);
+                case 412:
+                    IO.close(resp);
+                    throw E.unexpected("storage object changed while being read: %s", fullPath);
+                case 416:
+                    throw E.invalidRange("requested range not satisfiable: %s", fullPath);
                 default:
                     throw E.unexpected("Error accessing %s: %s", fullPath, resp.body().string());
             }
@@ -165,23 +473,184 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
 
         StringMap meta = new StringMap();
         for (String k : attrs.keySet()) {
-            meta.putNotEmpty(k, attrs.get(k));
+            // the content type and length are kept as the mime type and size of the object
+            if (!ISObject.ATTR_CONTENT_TYPE.equals(k) && !ISObject.ATTR_CONTENT_LENGTH.equals(k)) {
+                meta.putNotEmpty(META_PREFIX + k, attrs.get(k));
+            }
         }
 
         String contentType = stuff.getAttribute(ISObject.ATTR_CONTENT_TYPE);
+        long length = stuff instanceof SObject.InputStreamSObject ? -1 : stuff.getLength();
 
+        InputStream is = stuff.asInputStream();
         try {
-            uploadManager.put(stuff.asInputStream(), fullPath, getUploadToken(), meta, contentType);
+            String token = getUploadToken();
+            if (0 <= length && length < chunkedThreshold) {
+                uploadManager.put(is, fullPath, token, meta, contentType);
+            } else if (length < 0) {
+                // probe the first block to find out if the object is small enough for single upload
+                byte[] head = new byte[BLOCK_SIZE];
+                int n = PartUploader.readFully(is, head);
+                if (n < BLOCK_SIZE) {
+                    uploadManager.put(new ByteArrayInputStream(head, 0, n), fullPath, token, meta, contentType);
+                } else {
+                    chunkedUpload(fullPath, is, head, null, token, meta, contentType);
+                }
+            } else {
+                File file = stuff instanceof SObject.FileSObject ? stuff.asFile() : null;
+                chunkedUpload(fullPath, is, null, file, token, meta, contentType);
+            }
         } catch (QiniuException e) {
             throw handleException(fullPath, e);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(is);
         }
     }
 
+    private static final class Block {
+        final String ctx;
+        final long expiredAt;
+        final int size;
+
+        Block(String ctx, long expiredAt, int size) {
+            this.ctx = ctx;
+            this.expiredAt = expiredAt;
+            this.size = size;
+        }
+    }
+
+    /*
+     * Upload content with Kodo's chunked upload API: each block is created with
+     * `mkblk` carrying the whole block content, and the object is assembled
+     * from the block contexts with `mkfile`.
+     *
+     * If the content comes from a local file, the contexts of uploaded blocks
+     * are kept in a recorder file, so that blocks uploaded by an interrupted
+     * attempt are not uploaded again, until they expire.
+     */
+    private void chunkedUpload(
+            String fullPath, InputStream is, byte[] head, final File file,
+            final String token, StringMap meta, String contentType
+    ) throws QiniuException {
+        final String upHost = configuration.upHost(token);
+        final String recordKey = null == file ? null : recorder.recorderKeyGenerate(fullPath, file);
+        final Map<Integer, Block> record = null == recordKey ? new HashMap<Integer, Block>() : readRecord(recordKey, file);
+        List<Block> blocks;
+        try {
+            blocks = new PartUploader<Block>(BLOCK_SIZE, chunkedConcurrency, chunkedRetries) {
+                @Override
+                protected Block uploadPart(int partNumber, byte[] buf, int len) {
+                    Block block;
+                    synchronized (record) {
+                        block = record.get(partNumber);
+                    }
+                    if (null != block && block.size == len) {
+                        return block;
+                    }
+                    StringMap headers = new StringMap().put("Authorization", "UpToken " + token);
+                    try {
+                        StringMap ret = client.post(upHost + "/mkblk/" + len, buf, 0, len, headers, Client.DefaultMime).jsonToMap();
+                        block = new Block((String) ret.get("ctx"), ((Number) ret.get("expired_at")).longValue(), len);
+                    } catch (QiniuException e) {
+                        throw E.unexpected(e, "error uploading block %s", partNumber);
+                    }
+                    if (null != recordKey) {
+                        synchronized (record) {
+                            record.put(partNumber, block);
+                            writeRecord(recordKey, file, record);
+                        }
+                    }
+                    return block;
+                }
+            }.upload(is, head);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof QiniuException) {
+                throw (QiniuException) e.getCause();
+            }
+            throw e;
+        }
+        long size = 0;
+        StringBuilder ctxList = S.builder();
+        for (Block block : blocks) {
+            size += block.size;
+            if (ctxList.length() > 0) {
+                ctxList.append(",");
+            }
+            ctxList.append(block.ctx);
+        }
+        StringBuilder url = S.builder(upHost).append("/mkfile/").append(size)
+                .append("/key/").append(UrlSafeBase64.encodeToString(fullPath));
+        if (S.notBlank(contentType)) {
+            url.append("/mimeType/").append(UrlSafeBase64.encodeToString(contentType));
+        }
+        for (Map.Entry<String, Object> entry : meta.map().entrySet()) {
+            // only user variables and meta data are accepted, same as form upload
+            if (entry.getKey().startsWith("x:") || entry.getKey().startsWith(META_PREFIX)) {
+                url.append("/").append(entry.getKey()).append("/")
+                        .append(UrlSafeBase64.encodeToString(S.string(entry.getValue())));
+            }
+        }
+        StringMap headers = new StringMap().put("Authorization", "UpToken " + token);
+        client.post(url.toString(), S.string(ctxList).getBytes(), headers, "text/plain").close();
+        if (null != recordKey) {
+            recorder.del(recordKey);
+        }
+    }
+
+    // record format: the first line is the file length and last modified
+    // time, followed by one line for each uploaded block: `partNumber expiredAt size ctx`
+    private Map<Integer, Block> readRecord(String recordKey, File file) {
+        Map<Integer, Block> record = new HashMap<>();
+        byte[] data = recorder.get(recordKey);
+        if (null == data) {
+            return record;
+        }
+        String[] lines = new String(data).split("\n");
+        if (!S.eq(lines[0], fileStamp(file))) {
+            // file changed since the record was written
+            return record;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 1; i < lines.length; ++i) {
+            String[] fields = lines[i].split(" ");
+            if (4 != fields.length) {
+                continue;
+            }
+            long expiredAt = Long.parseLong(fields[1]);
+            // leave a margin so that the block does not expire before the upload completes
+            if (expiredAt - 3600 > now) {
+                record.put(Integer.parseInt(fields[0]), new Block(fields[3], expiredAt, Integer.parseInt(fields[2])));
+            }
+        }
+        return record;
+    }
+
+    private void writeRecord(String recordKey, File file, Map<Integer, Block> record) {
+        StringBuilder sb = S.builder(fileStamp(file));
+        for (Map.Entry<Integer, Block> entry : record.entrySet()) {
+            Block block = entry.getValue();
+            sb.append("\n").append(entry.getKey()).append(" ").append(block.expiredAt)
+                    .append(" ").append(block.size).append(" ").append(block.ctx);
+        }
+        recorder.set(recordKey, S.string(sb).getBytes());
+    }
+
+    private static String fileStamp(File file) {
+        return S.concat(S.string(file.length()), " ", S.string(file.lastModified()));
+    }
+
     @Override
     protected ISObject newSObject(String key) {
         return new KodoObject(key, this);
     }
 
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new KodoObject(key, attrs, this);
+    }
+
     @Override
     protected StorageServiceBase newService(Map<String, String> conf) {
         return new KodoService(conf);
@@ -190,6 +659,7 @@ public class KodoService extends StorageServiceBase<KodoObject> implements IStor
     private static RuntimeException handleException(String key, QiniuException e) {
         switch (e.code()) {
             case 404:
+            case NO_SUCH_FILE:
                 throw new ResourceNotFoundException(e, key);
             case 403:
                 throw new AccessDeniedException(e, key);
@@ -0,0 +1,50 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+/**
+ * Content of a storage object loaded from the storage service.
+ *
+ * Unlike {@link SObject.ByteArraySObject}, {@link #asByteArray()} returns
+ * the loaded content without copying it unless the content is shared, e.g.
+ * with the {@link ContentCache}. Thus the byte array returned by
+ * {@link #asByteArray()} shall not be modified by the caller.
+ */
+class LoadedSObject extends SObject.ByteArraySObject {
+
+    private final boolean shared;
+
+    /**
+     * @param key     the key
+     * @param content the content
+     * @param shared  whether the content array is shared with others
+     */
+    LoadedSObject(String key, byte[] content, boolean shared) {
+        super(key, content);
+        this.shared = shared;
+    }
+
+    @Override
+    public byte[] asByteArray() {
+        return shared ? super.asByteArray() : buf_;
+    }
+}
@@ -0,0 +1,129 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.util.C;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches meta attributes of storage objects for a limited time.
+ *
+ * Objects not found in the storage service are cached as well, a
+ * {@link ResourceNotFoundException} is thrown when such an entry is hit.
+ *
+ * The number of entries is bounded; the least recently used entry is
+ * evicted once the limit is reached
+ */
+final class MetaCache {
+
+    private static final class Entry {
+        // null means the object does not exist
+        final Map<String, String> meta;
+        final long expireAt;
+
+        Entry(Map<String, String> meta, long expireAt) {
+            this.meta = meta;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final LinkedHashMap<String, Entry> entries;
+    // bumped on each invalidation, so meta loaded before an invalidation is not cached
+    private long generation;
+
+    /**
+     * @param maxEntries  the maximum number of entries
+     * @param ttl         time to live of a meta entry in milliseconds
+     * @param negativeTtl time to live of a not found entry in milliseconds, `0` disables negative caching
+     */
+    MetaCache(final int maxEntries, long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MetaCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the meta attributes cached by fullPath, or `null` if not cached
+     *
+     * @param fullPath the full path of the storage object
+     * @return the meta attributes
+     * @throws ResourceNotFoundException if the object is cached as not found
+     */
+    synchronized Map<String, String> get(String fullPath) {
+        Entry entry = entries.get(fullPath);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            entries.remove(fullPath);
+            return null;
+        }
+        if (null == entry.meta) {
+            throw new ResourceNotFoundException("storage object not found: %s", fullPath);
+        }
+        return C.newMap(entry.meta);
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache the meta attributes unless the cache has been invalidated since
+     * the generation specified
+     *
+     * @param fullPath   the full path of the storage object
+     * @param meta       the meta attributes, `null` if object not found
+     * @param generation the generation when the meta attributes were requested
+     */
+    synchronized void put(String fullPath, Map<String, String> meta, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        long timeToLive = null == meta ? negativeTtl : ttl;
+        if (timeToLive <= 0) {
+            return;
+        }
+        Map<String, String> copy = null == meta ? null : Collections.unmodifiableMap(C.newMap(meta));
+        entries.put(fullPath, new Entry(copy, System.currentTimeMillis() + timeToLive));
+    }
+
+    synchronized void invalidate(String fullPath) {
+        generation++;
+        entries.remove(fullPath);
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+}
@@ -0,0 +1,324 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.IO;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link MetaStore} keeps the meta attributes of all objects of a
+ * directory in a single index file.
+ *
+ * The index file starts with a header of the magic number and a generation
+ * number, followed by records of `(name, attributes)`. A record with no
+ * attribute list marks the attributes of the name as removed. Records are
+ * only appended, thus the parsed index is cached and refreshed by reading
+ * the records appended since the last read, which is skipped when the size
+ * and modification time of the index file have not changed. The index file
+ * is compacted when more than half of it is occupied by obsolete records,
+ * with a new generation number so that the cached indexes are reloaded.
+ *
+ * The cache of the indexes is shared by all services in the JVM. Writing
+ * into the same directory from multiple processes is not supported.
+ */
+final class MetaIndexStore extends MetaStore {
+
+    static final MetaIndexStore INSTANCE = new MetaIndexStore();
+
+    static final String INDEX_FILE = ".meta";
+
+    private static final int MAGIC = 0x4F534D49;
+    private static final int HEADER_SIZE = 12;
+    private static final int COMPACT_THRESHOLD = 64 * 1024;
+    private static final int MAX_CACHED_DIRS = 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private static final class Entry {
+        final Map<String, String> attrs;
+        final int size;
+
+        Entry(Map<String, String> attrs, int size) {
+            this.attrs = attrs;
+            this.size = size;
+        }
+    }
+
+    private static final class DirIndex {
+        final File file;
+        final Map<String, Entry> entries = new HashMap<>();
+        long generation;
+        // the position of the next record to be read
+        long offset;
+        long liveBytes;
+        long size = -1;
+        long lastModified = -1;
+
+        DirIndex(File dir) {
+            this.file = new File(dir, INDEX_FILE);
+        }
+    }
+
+    private final Map<File, DirIndex> indexes = new LinkedHashMap<File, DirIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, DirIndex> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    };
+
+    // the index of a directory is guarded by the stripe lock of the directory rather than
+    // the index instance, as the instance evicted from the cache might still be in use
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private MetaIndexStore() {
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    Map<String, String> read(File file) throws IOException {
+        DirIndex index = indexOf(file.getParentFile());
+        synchronized (lockOf(index)) {
+            refresh(index);
+            Entry entry = index.entries.get(file.getName());
+            return null == entry ? null : new HashMap<>(entry.attrs);
+        }
+    }
+
+    @Override
+    Pending prepare(final File file, File tmp, final Map<String, String> attrs) {
+        final DirIndex index = indexOf(file.getParentFile());
+        return new Pending() {
+            @Override
+            List<File> committed() {
+                List<File> list = new ArrayList<>();
+                list.add(index.file);
+                return list;
+            }
+
+            @Override
+            void commit() throws IOException {
+                append(index, file.getName(), attrs.isEmpty() ? null : attrs);
+            }
+        };
+    }
+
+    @Override
+    void remove(File file) throws IOException {
+        DirIndex index = indexOf(file.getParentFile());
+        synchronized (lockOf(index)) {
+            refresh(index);
+            if (index.entries.containsKey(file.getName())) {
+                append(index, file.getName(), null);
+            }
+        }
+    }
+
+    private DirIndex indexOf(File dir) {
+        File key = dir.getAbsoluteFile();
+        synchronized (indexes) {
+            DirIndex index = indexes.get(key);
+            if (null == index) {
+                index = new DirIndex(key);
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private void append(DirIndex index, String name, Map<String, String> attrs) throws IOException {
+        synchronized (lockOf(index)) {
+            refresh(index);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream os = new DataOutputStream(bos);
+            boolean header = index.offset == 0;
+            long generation = header ? ThreadLocalRandom.current().nextLong() : index.generation;
+            if (header) {
+                os.writeInt(MAGIC);
+                os.writeLong(generation);
+            }
+            int start = os.size();
+            writeRecord(os, name, attrs);
+            try (FileChannel channel = FileChannel.open(index.file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long end = channel.size();
+                ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+                try {
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                } catch (IOException e) {
+                    // remove the partially written record, the index is left unchanged
+                    try {
+                        channel.truncate(end);
+                    } catch (IOException e1) {
+                        // best effort, the original error is reported
+                    }
+                    throw e;
+                }
+                index.offset = channel.size();
+            }
+            // update the index only after the record is written
+            index.generation = generation;
+            apply(index, name, attrs, os.size() - start);
+            stat(index);
+            if (index.offset > COMPACT_THRESHOLD && index.offset > 2 * (index.liveBytes + HEADER_SIZE)) {
+                compact(index);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream os, String name, Map<String, String> attrs) throws IOException {
+        byte[] body = null == attrs ? null : encode(attrs);
+        byte[] nameBytes = name.getBytes("UTF-8");
+        // record length excludes the length field itself
+        os.writeInt(2 + nameBytes.length + 1 + (null == body ? 0 : body.length));
+        os.writeShort(nameBytes.length);
+        os.write(nameBytes);
+        os.writeBoolean(null != body);
+        if (null != body) {
+            os.write(body);
+        }
+    }
+
+    private static void apply(DirIndex index, String name, Map<String, String> attrs, int size) {
+        Entry old = null == attrs ? index.entries.remove(name) : index.entries.put(name, new Entry(attrs, size));
+        if (null != old) {
+            index.liveBytes -= old.size;
+        }
+        if (null != attrs) {
+            index.liveBytes += size;
+        }
+    }
+
+    private Object lockOf(DirIndex index) {
+        int h = index.file.hashCode();
+        h ^= h >>> 16;
+        return locks[h & (LOCK_STRIPES - 1)];
+    }
+
+    // rewrite the live records into a new index file of a new generation
+    private void compact(DirIndex index) throws IOException {
+        File tmp = FileSystemService.tmpFile(index.file);
+        long generation = ThreadLocalRandom.current().nextLong();
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                os.writeInt(MAGIC);
+                os.writeLong(generation);
+                for (Map.Entry<String, Entry> entry : index.entries.entrySet()) {
+                    writeRecord(os, entry.getKey(), entry.getValue().attrs);
+                }
+            } finally {
+                IO.close(os);
+            }
+            FileSystemService.move(tmp, index.file);
+        } finally {
+            if (tmp.exists()) {
+                IO.delete(tmp);
+            }
+        }
+        index.generation = generation;
+        index.offset = HEADER_SIZE + index.liveBytes;
+        stat(index);
+    }
+
+    // read the records appended since last read
+    private static void refresh(DirIndex index) throws IOException {
+        long size = index.size;
+        long lastModified = index.lastModified;
+        if (!stat(index)) {
+            reset(index);
+            return;
+        }
+        if (size == index.size && lastModified == index.lastModified) {
+            return;
+        }
+        byte[] bytes;
+        try (FileChannel channel = FileChannel.open(index.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) ;
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                throw new IOException("corrupted meta index file: " + index.file);
+            }
+            long generation = header.getLong(4);
+            if (generation != index.generation || channel.size() < index.offset) {
+                index.entries.clear();
+                index.liveBytes = 0;
+                index.generation = generation;
+                index.offset = HEADER_SIZE;
+            }
+            long len = channel.size() - index.offset;
+            if (len <= 0) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) len);
+            while (buf.hasRemaining() && channel.read(buf, index.offset + buf.position()) > 0) ;
+            bytes = buf.array();
+        }
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(bytes));
+        int pos = 0;
+        while (bytes.length - pos >= 4) {
+            int len = is.readInt();
+            if (bytes.length - pos - 4 < len) {
+                // a record being written
+                break;
+            }
+            byte[] nameBytes = new byte[is.readUnsignedShort()];
+            is.readFully(nameBytes);
+            Map<String, String> attrs = is.readBoolean() ? decode(is) : null;
+            apply(index, new String(nameBytes, "UTF-8"), attrs, 4 + len);
+            pos += 4 + len;
+        }
+        index.offset += pos;
+    }
+
+    private static void reset(DirIndex index) {
+        index.entries.clear();
+        index.liveBytes = 0;
+        index.generation = 0;
+        index.offset = 0;
+    }
+
+    // returns false if the index file does not exist
+    private static boolean stat(DirIndex index) throws IOException {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(index.file.toPath(), BasicFileAttributes.class);
+            index.size = attrs.size();
+            index.lastModified = attrs.lastModifiedTime().toMillis();
+            return true;
+        } catch (NoSuchFileException e) {
+            index.size = -1;
+            index.lastModified = -1;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.$;
+import org.osgl.util.C;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.*;
+
+/**
+ * Stores the meta attributes of the objects of a {@link FileSystemService}.
+ *
+ * Three stores are provided:
+ *
+ * * `properties`: attributes are written into a sidecar `<name>.attr` file in
+ *   the {@link Properties} format. This is the default and the legacy store
+ * * `xattr`: attributes are encoded in a compact binary format and written into
+ *   a single user extended attribute of the file
+ * * `index`: attributes are appended into a compact binary index file per
+ *   directory, see {@link MetaIndexStore}
+ */
+abstract class MetaStore {
+
+    /**
+     * The attribute writes prepared before the blob is published and committed
+     * after the blob is published.
+     */
+    static abstract class Pending {
+        /**
+         * @return the files to be flushed before the blob is published
+         */
+        List<File> staged() {
+            return C.list();
+        }
+
+        /**
+         * @return the files to be flushed, besides the parent directory, after commit
+         */
+        List<File> committed() {
+            return C.list();
+        }
+
+        abstract void commit() throws IOException;
+
+        void discard() {
+        }
+    }
+
+    static final Pending NO_OP = new Pending() {
+        @Override
+        void commit() {
+        }
+    };
+
+    static final MetaStore PROPERTIES = new PropertiesStore();
+
+    /**
+     * Returns the meta attributes of the file specified.
+     *
+     * @param file the blob file
+     * @return the meta attributes or `null` if there is no attribute stored for the file
+     * @throws IOException if any IO error encountered
+     */
+    abstract Map<String, String> read(File file) throws IOException;
+
+    /**
+     * Prepare to write the meta attributes of a blob. The blob content has been
+     * written into `tmp`, which is going to be published to `file`.
+     *
+     * @param file  the blob file
+     * @param tmp   the file the blob content has been written into
+     * @param attrs the meta attributes, could be empty
+     * @return the pending writes
+     * @throws IOException if any IO error encountered
+     */
+    abstract Pending prepare(File file, File tmp, Map<String, String> attrs) throws IOException;
+
+    /**
+     * Remove the meta attributes of the file specified.
+     *
+     * @param file the blob file
+     * @throws IOException if any IO error encountered
+     */
+    abstract void remove(File file) throws IOException;
+
+    /**
+     * Returns the store of the type specified. The `xattr` store falls back to
+     * the `index` store if the file system of the root dir does not support
+     * user defined extended attributes.
+     *
+     * @param type the store type: `properties`, `xattr` or `index`
+     * @param root the root dir of the file system service
+     * @return the meta store
+     */
+    static MetaStore of(String type, File root) {
+        if ("properties".equals(type)) {
+            return PROPERTIES;
+        } else if ("index".equals(type)) {
+            return MetaIndexStore.INSTANCE;
+        } else if ("xattr".equals(type)) {
+            return XattrStore.supports(root) ? XattrStore.INSTANCE : MetaIndexStore.INSTANCE;
+        }
+        throw E.invalidConfiguration("unknown meta store: %s", type);
+    }
+
+    /**
+     * Check if a file name is the name of a meta attribute file
+     *
+     * @param name the file name
+     * @return `true` if the name is the name of an `.attr` file or an index file
+     */
+    static boolean isMetaFile(String name) {
+        return name.endsWith(".attr") || MetaIndexStore.INDEX_FILE.equals(name);
+    }
+
+    static byte[] encode(Map<String, String> attrs) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * attrs.size());
+        DataOutputStream os = new DataOutputStream(bos);
+        os.writeShort(attrs.size());
+        for (Map.Entry<String, String> entry : attrs.entrySet()) {
+            os.writeUTF(entry.getKey());
+            os.writeUTF(entry.getValue());
+        }
+        return bos.toByteArray();
+    }
+
+    static Map<String, String> decode(DataInput is) throws IOException {
+        int n = is.readUnsignedShort();
+        Map<String, String> attrs = new HashMap<>(n * 2);
+        for (int i = 0; i < n; ++i) {
+            attrs.put(is.readUTF(), is.readUTF());
+        }
+        return attrs;
+    }
+
+    private static final class PropertiesStore extends MetaStore {
+
+        @Override
+        Map<String, String> read(File file) {
+            File attrFile = attrFile(file);
+            if (!attrFile.canRead()) {
+                return null;
+            }
+            Properties p = IO.loadProperties(attrFile);
+            return $.cast(p);
+        }
+
+        @Override
+        Pending prepare(File file, File tmp, Map<String, String> attrs) throws IOException {
+            final File attrFile = attrFile(file);
+            if (attrs.isEmpty()) {
+                return new Pending() {
+                    @Override
+                    void commit() throws IOException {
+                        Files.deleteIfExists(attrFile.toPath());
+                    }
+                };
+            }
+            final File tmpAttr = FileSystemService.tmpFile(attrFile);
+            OutputStream os = IO.buffered(IO.outputStream(tmpAttr));
+            try {
+                Properties p = new Properties();
+                p.putAll(attrs);
+                p.store(os, "");
+            } finally {
+                IO.close(os);
+            }
+            return new Pending() {
+                @Override
+                List<File> staged() {
+                    return C.list(tmpAttr);
+                }
+
+                @Override
+                void commit() throws IOException {
+                    FileSystemService.move(tmpAttr, attrFile);
+                }
+
+                @Override
+                void discard() {
+                    if (tmpAttr.exists()) {
+                        IO.delete(tmpAttr);
+                    }
+                }
+            };
+        }
+
+        @Override
+        void remove(File file) throws IOException {
+            Files.deleteIfExists(attrFile(file).toPath());
+        }
+
+        static File attrFile(File file) {
+            return new File(file.getParent(), file.getName() + ".attr");
+        }
+    }
+
+    private static final class XattrStore extends MetaStore {
+
+        static final XattrStore INSTANCE = new XattrStore();
+
+        private static final String NAME = "osgl.meta";
+
+        private static final ThreadLocal<ByteBuffer> BUF = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(4096);
+            }
+        };
+
+        @Override
+        Map<String, String> read(File file) throws IOException {
+            UserDefinedFileAttributeView view = viewOf(file);
+            ByteBuffer buf = BUF.get();
+            buf.clear();
+            try {
+                try {
+                    view.read(NAME, buf);
+                } catch (NoSuchFileException e) {
+                    return null;
+                } catch (FileSystemException e) {
+                    // either the attribute does not exist or it is larger than the buffer
+                    int size;
+                    try {
+                        size = view.size(NAME);
+                    } catch (FileSystemException e2) {
+                        return null;
+                    }
+                    buf = ByteBuffer.allocate(size);
+                    view.read(NAME, buf);
+                }
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            buf.flip();
+            return decode(new DataInputStream(new ByteArrayInputStream(buf.array(), 0, buf.limit())));
+        }
+
+        @Override
+        Pending prepare(File file, File tmp, Map<String, String> attrs) throws IOException {
+            UserDefinedFileAttributeView view = viewOf(tmp);
+            if (!attrs.isEmpty()) {
+                view.write(NAME, ByteBuffer.wrap(encode(attrs)));
+            } else if (view.list().contains(NAME)) {
+                view.delete(NAME);
+            }
+            return NO_OP;
+        }
+
+        @Override
+        void remove(File file) {
+            // the extended attributes are removed along with the file
+        }
+
+        private static UserDefinedFileAttributeView viewOf(File file) {
+            return Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class);
+        }
+
+        // write an attribute into a probe file to verify the file system supports
+        // user defined extended attributes. `FileStore.supportsFileAttributeView`
+        // is not reliable as it checks the mount options, while recent kernels
+        // enable `user_xattr` on ext4 by default without listing it
+        static boolean supports(File root) {
+            File probe = FileSystemService.tmpFile(new File(root, "xattr"));
+            try {
+                Files.createFile(probe.toPath());
+                UserDefinedFileAttributeView view = viewOf(probe);
+                if (null == view) {
+                    return false;
+                }
+                view.write(NAME, ByteBuffer.wrap(new byte[]{1}));
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            } finally {
+                if (probe.exists()) {
+                    IO.delete(probe);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.util.E;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator that fetches elements page by page. The next page is
+ * not fetched until all elements of the current page are consumed
+ *
+ * @param <T> the element type
+ */
+abstract class PagedIterator<T> implements Iterator<T> {
+
+    private Iterator<T> page = Collections.emptyIterator();
+    private boolean exhausted;
+
+    /**
+     * Fetch the next page of elements.
+     *
+     * @return the elements of the next page, or `null` if there is no more page
+     */
+    protected abstract List<T> nextPage();
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            List<T> list = nextPage();
+            if (null == list) {
+                exhausted = true;
+                return false;
+            }
+            page = list.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw E.unsupport();
+    }
+}
@@ -0,0 +1,213 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.util.E;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads content read from an input stream part by part, with parts
+ * uploaded in parallel.
+ *
+ * The number of part buffers, and thus the memory used, is bounded by the
+ * concurrency: the input stream is not read until a part buffer is released
+ * by a completed upload. Failed part uploads are retried with backoff.
+ *
+ * @param <R> the type of the part upload result, e.g. the etag of the part
+ */
+abstract class PartUploader<R> {
+
+    private static final long RETRY_DELAY = 100;
+
+    private static volatile ExecutorService executor;
+
+    private final int partSize;
+    private final int concurrency;
+    private final int maxRetries;
+
+    /**
+     * @param partSize    the number of bytes of each part but the last one
+     * @param concurrency the max number of parts uploaded in parallel
+     * @param maxRetries  the max number of retries of each part
+     */
+    PartUploader(int partSize, int concurrency, int maxRetries) {
+        E.illegalArgumentIf(partSize < 1, "part size shall be positive");
+        E.illegalArgumentIf(concurrency < 1, "concurrency shall be positive");
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Upload a part.
+     *
+     * @param partNumber the part number, starts from `1`
+     * @param buf        the buffer contains the part content
+     * @param len        the number of bytes of the part
+     * @return the result of the part upload
+     */
+    protected abstract R uploadPart(int partNumber, byte[] buf, int len);
+
+    /**
+     * Upload content of the input stream.
+     *
+     * @param is    the input stream
+     * @param first the first part that has already been read from the input stream, could be `null`
+     * @return the results of all parts in part number order
+     */
+    List<R> upload(InputStream is, byte[] first) {
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(concurrency);
+        // the first part is put back into the buffer pool only if it is of part size
+        int allocated = null != first && first.length == partSize ? 1 : 0;
+        List<Future<R>> futures = new ArrayList<>();
+        int partNumber = 0;
+        try {
+            byte[] buf = first;
+            int len = null == first ? 0 : first.length;
+            if (null == buf) {
+                buf = new byte[partSize];
+                allocated++;
+                len = readFully(is, buf);
+            }
+            while (len > 0 || 0 == partNumber) {
+                futures.add(submit(++partNumber, buf, len, buffers));
+                checkFailure(futures);
+                if (len < partSize) {
+                    // end of stream reached
+                    break;
+                }
+                if (allocated < concurrency) {
+                    buf = new byte[partSize];
+                    allocated++;
+                } else {
+                    buf = buffers.take();
+                }
+                len = readFully(is, buf);
+            }
+            List<R> results = new ArrayList<>(futures.size());
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw E.unexpected(e, "interrupted while uploading");
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            for (Future<R> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Future<R> submit(final int partNumber, final byte[] buf, final int len, final BlockingQueue<byte[]> buffers) {
+        return executor().submit(new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                try {
+                    for (int attempt = 0; ; ++attempt) {
+                        try {
+                            return uploadPart(partNumber, buf, len);
+                        } catch (RuntimeException e) {
+                            if (attempt >= maxRetries) {
+                                throw e;
+                            }
+                            Thread.sleep(RETRY_DELAY << attempt);
+                        }
+                    }
+                } finally {
+                    if (buf.length == partSize) {
+                        buffers.offer(buf);
+                    }
+                }
+            }
+        });
+    }
+
+    // fail fast if any part upload has failed
+    private static <R> void checkFailure(List<Future<R>> futures) throws ExecutionException, InterruptedException {
+        for (Future<R> future : futures) {
+            if (future.isDone()) {
+                future.get();
+            }
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return E.unexpected(cause);
+    }
+
+    /**
+     * Read from the input stream until the buffer is full or the end of the stream is reached
+     *
+     * @param is  the input stream
+     * @param buf the buffer
+     * @return the number of bytes read
+     * @throws IOException if any IO error encountered
+     */
+    static int readFully(InputStream is, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int read = is.read(buf, n, buf.length - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
+    /**
+     * @return the executor shared by parallel transfers
+     */
+    static ExecutorService executor() {
+        if (null == executor) {
+            synchronized (PartUploader.class) {
+                if (null == executor) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "storage-transfer-" + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
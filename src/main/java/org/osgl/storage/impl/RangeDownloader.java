@@ -0,0 +1,234 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.E;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a storage object into a local file, with ranges of the object
+ * fetched in parallel and written to the preallocated file at their positions.
+ *
+ * The progress is kept in a checkpoint file next to the target file, named
+ * with suffix {@link #CHECKPOINT_SUFFIX}. If a download is interrupted, the
+ * next download of the same object version into the same file fetches only
+ * the ranges not yet completed. The checkpoint file is removed once the
+ * download completes.
+ */
+abstract class RangeDownloader {
+
+    static final String CHECKPOINT_SUFFIX = ".download";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_DELAY = 100;
+
+    private final long length;
+    private final String version;
+    private final int rangeSize;
+    private final int concurrency;
+    private final int maxRetries;
+
+    /**
+     * @param length      the number of bytes of the object
+     * @param version     the version of the object, e.g. the etag, could be `null`
+     * @param rangeSize   the number of bytes of each range
+     * @param concurrency the max number of ranges downloaded in parallel
+     * @param maxRetries  the max number of retries of each range
+     */
+    RangeDownloader(long length, String version, int rangeSize, int concurrency, int maxRetries) {
+        E.illegalArgumentIf(length < 0, "length shall not be negative");
+        E.illegalArgumentIf(rangeSize < 1, "range size shall be positive");
+        E.illegalArgumentIf(concurrency < 1, "concurrency shall be positive");
+        this.length = length;
+        this.version = S.blank(version) ? "-" : version.replace(' ', '_');
+        this.rangeSize = rangeSize;
+        this.concurrency = concurrency;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Open an input stream to read a range of the object.
+     *
+     * @param offset the offset of the range
+     * @param length the number of bytes of the range
+     * @return the input stream
+     */
+    protected abstract InputStream openRange(long offset, long length);
+
+    /**
+     * Download the object into the target file.
+     *
+     * @param target the target file
+     */
+    void download(Path target) {
+        File checkpoint = checkpointOf(target);
+        final int ranges = (int) ((length + rangeSize - 1) / rangeSize);
+        final Set<Integer> completed = resume(target, checkpoint);
+        boolean fresh = !checkpoint.exists();
+        try (final FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             final Writer log = new OutputStreamWriter(new FileOutputStream(checkpoint, true), "UTF-8")) {
+            if (fresh) {
+                // preallocate the target file
+                channel.truncate(0);
+                if (length > 0) {
+                    channel.write(ByteBuffer.allocate(1), length - 1);
+                }
+                log.write(header());
+                log.flush();
+            }
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < Math.min(concurrency, ranges); ++i) {
+                futures.add(PartUploader.executor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] buf = new byte[COPY_BUFFER_SIZE];
+                        for (int range = next.getAndIncrement(); range < ranges; range = next.getAndIncrement()) {
+                            if (completed.contains(range)) {
+                                continue;
+                            }
+                            fetch(range, channel, buf);
+                            // make sure the range is persisted before it is recorded
+                            channel.force(false);
+                            synchronized (log) {
+                                log.write(range + "\n");
+                                log.flush();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw E.unexpected(e, "interrupted while downloading");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw E.ioException((IOException) cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw E.unexpected(cause);
+            } finally {
+                // stop the other workers if any of them failed
+                next.set(ranges);
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+        IO.delete(checkpoint);
+    }
+
+    private void fetch(int range, FileChannel channel, byte[] buf) throws IOException, InterruptedException {
+        long offset = (long) range * rangeSize;
+        long len = Math.min(rangeSize, length - offset);
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                InputStream is = openRange(offset, len);
+                try {
+                    long position = offset;
+                    long end = offset + len;
+                    while (position < end) {
+                        int n = is.read(buf, 0, (int) Math.min(buf.length, end - position));
+                        if (n < 0) {
+                            throw new EOFException("unexpected end of range " + range);
+                        }
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        while (bb.hasRemaining()) {
+                            position += channel.write(bb, position);
+                        }
+                    }
+                    return;
+                } finally {
+                    IO.close(is);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= maxRetries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                Thread.sleep(RETRY_DELAY << attempt);
+            }
+        }
+    }
+
+    // returns the ranges completed by previous download
+    private Set<Integer> resume(Path target, File checkpoint) {
+        Set<Integer> completed = new HashSet<>();
+        if (!checkpoint.exists() || !Files.exists(target)) {
+            IO.delete(checkpoint);
+            return completed;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !S.eq(lines.get(0) + "\n", header()) || Files.size(target) != length) {
+                // the object or the target file has changed since the checkpoint
+                IO.delete(checkpoint);
+                return completed;
+            }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+        for (int i = 1; i < lines.size(); ++i) {
+            String line = lines.get(i).trim();
+            // the last line might be incomplete
+            if (S.isInt(line)) {
+                completed.add(Integer.parseInt(line));
+            }
+        }
+        return completed;
+    }
+
+    private String header() {
+        return S.concat(S.string(length), " ", S.string(rangeSize), " ", version, "\n");
+    }
+
+    static File checkpointOf(Path target) {
+        return new File(target.toAbsolutePath().toString() + CHECKPOINT_SUFFIX);
+    }
+}
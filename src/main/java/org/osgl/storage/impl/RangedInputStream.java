@@ -0,0 +1,202 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.util.E;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream that downloads a range of content as consecutive chunks,
+ * with up to `concurrency` chunks fetched in parallel ahead of the reader.
+ *
+ * The number of chunk buffers, and thus the memory used, is bounded by the
+ * concurrency: a buffer is reused to fetch the next chunk once its content
+ * has been consumed by the reader.
+ */
+abstract class RangedInputStream extends InputStream {
+
+    private static final class Chunk {
+        final byte[] buf;
+        final int len;
+        final Future<Integer> future;
+
+        Chunk(byte[] buf, int len, Future<Integer> future) {
+            this.buf = buf;
+            this.len = len;
+            this.future = future;
+        }
+    }
+
+    private final int chunkSize;
+    private final int concurrency;
+    private final long end;
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+
+    // the offset of the next chunk to be fetched
+    private long next;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * @param offset      the offset of the first byte to be read
+     * @param length      the number of bytes to be read
+     * @param chunkSize   the number of bytes fetched by each request
+     * @param concurrency the max number of chunks fetched in parallel
+     */
+    RangedInputStream(long offset, long length, int chunkSize, int concurrency) {
+        E.illegalArgumentIf(chunkSize < 1, "chunk size shall be positive");
+        E.illegalArgumentIf(concurrency < 1, "concurrency shall be positive");
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+        this.next = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Fetch a range of content.
+     *
+     * @param offset    the offset of the range
+     * @param len       the number of bytes of the range
+     * @param buf       the buffer to receive the content
+     * @param bufOffset the offset in the buffer at which the content is written
+     * @return the number of bytes fetched
+     * @throws Exception if any error encountered
+     */
+    protected abstract int fetchRange(long offset, int len, byte[] buf, int bufOffset) throws Exception;
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBuffer()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+        if (!ensureBuffer()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Chunk chunk : chunks) {
+            chunk.future.cancel(true);
+        }
+        chunks.clear();
+        buf = null;
+    }
+
+    private boolean ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (pos < limit) {
+            return true;
+        }
+        if (!started) {
+            started = true;
+            for (int i = 0; i < concurrency && next < end; ++i) {
+                fetch(new byte[(int) Math.min(chunkSize, end - next)]);
+            }
+        } else if (null != buf && next < end) {
+            // the current buffer has been consumed, reuse it to fetch the next chunk
+            fetch(buf);
+        }
+        buf = null;
+        Chunk chunk = chunks.poll();
+        if (null == chunk) {
+            return false;
+        }
+        try {
+            limit = chunk.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while downloading", e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        buf = chunk.buf;
+        pos = 0;
+        if (limit < chunk.len) {
+            // content is shorter than expected, e.g. truncated by others
+            close();
+            throw new IOException("unexpected end of content");
+        }
+        return limit > 0;
+    }
+
+    private void fetch(byte[] target) {
+        final long offset = next;
+        final int len = (int) Math.min(chunkSize, end - next);
+        final byte[] buf = target.length >= len ? target : new byte[len];
+        next += len;
+        Future<Integer> future = PartUploader.executor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int n = 0;
+                while (n < len) {
+                    int read = fetchRange(offset + n, len - n, buf, n);
+                    if (read <= 0) {
+                        break;
+                    }
+                    n += read;
+                }
+                return n;
+            }
+        });
+        chunks.add(new Chunk(buf, len, future));
+    }
+}
@@ -20,8 +20,14 @@ package org.osgl.storage.impl;
  * #L%
  */
 
+import java.util.Map;
+
 class S3Obj extends StorageObject<S3Obj, S3Service> {
     S3Obj(String key, S3Service svc) {
         super(key, svc);
     }
+
+    S3Obj(String key, Map<String, String> attrs, S3Service svc) {
+        super(key, attrs, svc);
+    }
 }
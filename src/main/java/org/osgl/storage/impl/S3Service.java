@@ -31,11 +31,16 @@ import org.osgl.exception.ResourceNotFoundException;
 import org.osgl.storage.ISObject;
 import org.osgl.storage.IStorageService;
 import org.osgl.util.E;
+import org.osgl.util.IO;
 import org.osgl.util.S;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -74,6 +79,38 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
     public static final String CONF_TCP_KEEP_ALIVE = "storage.s3.tcpKeepAlive";
     public static final String CONF_MAX_CONN = "storage.s3.maxConnection";
 
+    /**
+     * Objects with size larger than or equal to this threshold, in bytes, are
+     * uploaded with multipart upload. Objects with unknown size are uploaded
+     * with multipart upload if they are larger than the part size.
+     *
+     * Default value: `16777216`, i.e. 16MB
+     */
+    public static final String CONF_MULTIPART_THRESHOLD = "storage.s3.multipart.threshold";
+
+    /**
+     * The size, in bytes, of each part of a multipart upload. The minimum
+     * part size allowed by S3 is 5MB.
+     *
+     * Default value: `8388608`, i.e. 8MB
+     */
+    public static final String CONF_MULTIPART_PART_SIZE = "storage.s3.multipart.partSize";
+
+    /**
+     * The max number of parts of one object uploaded in parallel, which is
+     * also the max number of part buffers held in memory by one upload.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_MULTIPART_CONCURRENCY = "storage.s3.multipart.concurrency";
+
+    /**
+     * The max number of retries of a failed part upload.
+     *
+     * Default value: `3`
+     */
+    public static final String CONF_MULTIPART_PART_RETRIES = "storage.s3.multipart.partRetries";
+
     /**
      * <p>This configuration item is deprecated and might be removed from future versions.</p>
      * <p>
@@ -100,11 +137,20 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
 
     public static final String ATTR_STORAGE_CLASS = "x-amz-storage-class";
 
+    // the max number of keys deleted by one delete objects request
+    private static final int BATCH_DELETE_LIMIT = 1000;
+
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
 
     private String awsKeyId;
     private String awsKeySecret;
     private StorageClass defStorageClass;
     private String bucket;
+    private long multipartThreshold;
+    private int partSize;
+    private int partConcurrency;
+    private int partRetries;
 
     public static AmazonS3 s3;
 
@@ -155,6 +201,10 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
             int n = Integer.parseInt(conf.get(CONF_SOCKET_TIMEOUT));
             cc = cc.withSocketTimeout(n);
         }
+        multipartThreshold = Long.parseLong(getConfValue(conf, CONF_MULTIPART_THRESHOLD, "16777216"));
+        partSize = Math.max(MIN_PART_SIZE, Integer.parseInt(getConfValue(conf, CONF_MULTIPART_PART_SIZE, "8388608")));
+        partConcurrency = Integer.parseInt(getConfValue(conf, CONF_MULTIPART_CONCURRENCY, "4"));
+        partRetries = Integer.parseInt(getConfValue(conf, CONF_MULTIPART_PART_RETRIES, "3"));
 
         s3 = new AmazonS3Client(cred, cc);
     }
@@ -168,6 +218,21 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
         }
     }
 
+    @Override
+    protected void doRemoveAll(List<String> fullPaths) {
+        for (int i = 0; i < fullPaths.size(); i += BATCH_DELETE_LIMIT) {
+            List<String> batch = fullPaths.subList(i, Math.min(i + BATCH_DELETE_LIMIT, fullPaths.size()));
+            DeleteObjectsRequest req = new DeleteObjectsRequest(bucket)
+                    .withKeys(batch.toArray(new String[batch.size()]))
+                    .withQuiet(true);
+            try {
+                s3.deleteObjects(req);
+            } catch (AmazonS3Exception e) {
+                throw handleException(batch.get(0), e);
+            }
+        }
+    }
+
     @Override
     protected ISObject newSObject(String key) {
         try {
@@ -177,11 +242,39 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
         }
     }
 
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new S3Obj(key, attrs, this);
+    }
+
+    @Override
+    protected Map<String, String> doGetStat(String fullPath) {
+        ObjectMetadata meta;
+        try {
+            meta = s3.getObjectMetadata(bucket, fullPath);
+        } catch (AmazonS3Exception e) {
+            throw handleException(fullPath, e);
+        }
+        Map<String, String> stat = new HashMap<>();
+        stat.put(ISObject.ATTR_CONTENT_LENGTH, S.string(meta.getContentLength()));
+        if (null != meta.getETag()) {
+            stat.put(ATTR_ETAG, meta.getETag());
+        }
+        if (null != meta.getLastModified()) {
+            stat.put(ATTR_LAST_MODIFIED, S.string(meta.getLastModified().getTime()));
+        }
+        return stat;
+    }
+
     @Override
     protected Map<String, String> doGetMeta(String fullPath) {
         GetObjectTaggingRequest req0 = new GetObjectTaggingRequest(bucket, fullPath);
-        GetObjectTaggingResult resp = s3.getObjectTagging(req0);
-        return tagListToMap(resp.getTagSet());
+        try {
+            GetObjectTaggingResult resp = s3.getObjectTagging(req0);
+            return tagListToMap(resp.getTagSet());
+        } catch (AmazonS3Exception e) {
+            throw handleException(fullPath, e);
+        }
     }
 
     @Override
@@ -191,21 +284,110 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
         return s3obj.getObjectContent();
     }
 
+    @Override
+    protected InputStream doGetInputStreamIfChanged(String fullPath, String etag, long lastModified, Map<String, String> meta) {
+        GetObjectRequest req = new GetObjectRequest(bucket, fullPath);
+        if (null != etag) {
+            req.withNonmatchingETagConstraint(S.concat("\"", etag, "\""));
+        } else {
+            req.withModifiedSinceConstraint(new Date(lastModified));
+        }
+        S3Object s3obj;
+        try {
+            s3obj = s3.getObject(req);
+        } catch (AmazonS3Exception e) {
+            throw handleException(fullPath, e);
+        }
+        if (null == s3obj) {
+            // constraint not met, i.e. not modified
+            return null;
+        }
+        ObjectMetadata objMeta = s3obj.getObjectMetadata();
+        meta.putAll(objMeta.getUserMetadata());
+        meta.put(ISObject.ATTR_CONTENT_LENGTH, S.string(objMeta.getContentLength()));
+        if (null != objMeta.getETag()) {
+            meta.put(ATTR_ETAG, objMeta.getETag());
+        }
+        if (null != objMeta.getLastModified()) {
+            meta.put(ATTR_LAST_MODIFIED, S.string(objMeta.getLastModified().getTime()));
+        }
+        return s3obj.getObjectContent();
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return doGetInputStreamIfMatch(fullPath, offset, length, null);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        GetObjectRequest req = new GetObjectRequest(bucket, fullPath);
+        if (length < 0) {
+            req.setRange(offset);
+        } else {
+            req.setRange(offset, offset + length - 1);
+        }
+        if (null != etag) {
+            req.withMatchingETagConstraint(S.concat("\"", etag, "\""));
+        }
+        S3Object s3obj;
+        try {
+            s3obj = s3.getObject(req);
+        } catch (AmazonS3Exception e) {
+            throw handleException(fullPath, e);
+        }
+        if (null == s3obj) {
+            // constraint not met
+            throw E.unexpected("storage object changed while being read: %s", fullPath);
+        }
+        return s3obj.getObjectContent();
+    }
+
     @Override
     protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
         ObjectMetadata meta = new ObjectMetadata();
         //meta.setContentType(stuff.getAttribute(ISObject.ATTR_CONTENT_TYPE));
         meta.setUserMetadata(attrs);
-        if (!(stuff instanceof SObject.InputStreamSObject)) {
-            long length = stuff.getLength();
-            if (0 < length) {
-                meta.setContentLength(stuff.getLength());
+        String encoding = contentEncodingOf(attrs);
+        if (null != encoding) {
+            meta.setContentEncoding(encoding);
+        }
+        long length = stuff instanceof SObject.InputStreamSObject ? -1 : stuff.getLength();
+        ObjectTagging tagging = mapToTagList(attrs);
+        StorageClass storageClass = StorageClass.valueOfIgnoreCase(attrs.remove(ATTR_STORAGE_CLASS), defStorageClass);
+
+        InputStream is = stuff.asInputStream();
+        try {
+            if (0 <= length && length < multipartThreshold) {
+                if (0 < length) {
+                    meta.setContentLength(length);
+                }
+                putObject(fullPath, is, meta, tagging, storageClass);
+            } else if (length < 0) {
+                // probe the first part to find out if the object is small enough for single upload
+                byte[] head = new byte[partSize];
+                int n = PartUploader.readFully(is, head);
+                if (n < partSize) {
+                    meta.setContentLength(n);
+                    putObject(fullPath, new ByteArrayInputStream(head, 0, n), meta, tagging, storageClass);
+                } else {
+                    multipartUpload(fullPath, is, head, partSize, meta, tagging, storageClass);
+                }
+            } else {
+                // S3 allows at most 10000 parts
+                int size = (int) Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+                multipartUpload(fullPath, is, null, size, meta, tagging, storageClass);
             }
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(is);
         }
+    }
 
-        PutObjectRequest req = new PutObjectRequest(bucket, fullPath, stuff.asInputStream(), meta);
-        req.setTagging(mapToTagList(attrs));
-        StorageClass storageClass = StorageClass.valueOfIgnoreCase(attrs.remove(ATTR_STORAGE_CLASS), defStorageClass);
+    private void putObject(String fullPath, InputStream is, ObjectMetadata meta, ObjectTagging tagging, StorageClass storageClass) {
+        PutObjectRequest req = new PutObjectRequest(bucket, fullPath, is, meta);
+        req.setTagging(tagging);
         if (null != storageClass) {
             req.setStorageClass(storageClass.toString());
         }
@@ -217,6 +399,147 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
         }
     }
 
+    private void multipartUpload(
+            final String fullPath, InputStream is, byte[] head, int size,
+            ObjectMetadata meta, ObjectTagging tagging, StorageClass storageClass
+    ) {
+        InitiateMultipartUploadRequest init = new InitiateMultipartUploadRequest(bucket, fullPath, meta)
+                .withTagging(tagging)
+                .withCannedACL(CannedAccessControlList.PublicRead);
+        if (null != storageClass) {
+            init.withStorageClass(storageClass.toString());
+        }
+        final String uploadId;
+        try {
+            uploadId = s3.initiateMultipartUpload(init).getUploadId();
+        } catch (AmazonS3Exception e) {
+            throw handleException(fullPath, e);
+        }
+        try {
+            List<PartETag> etags = new PartUploader<PartETag>(size, partConcurrency, partRetries) {
+                @Override
+                protected PartETag uploadPart(int partNumber, byte[] buf, int len) {
+                    UploadPartRequest req = new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(fullPath)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withInputStream(new ByteArrayInputStream(buf, 0, len))
+                            .withPartSize(len);
+                    return s3.uploadPart(req).getPartETag();
+                }
+            }.upload(is, head);
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, fullPath, uploadId, etags));
+        } catch (RuntimeException e) {
+            abortMultipartUpload(fullPath, uploadId);
+            if (e instanceof AmazonS3Exception) {
+                throw handleException(fullPath, (AmazonS3Exception) e);
+            }
+            throw e;
+        }
+    }
+
+    private void abortMultipartUpload(String fullPath, String uploadId) {
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, fullPath, uploadId));
+        } catch (RuntimeException e) {
+            logger.warn(e, "error aborting multipart upload %s of %s", uploadId, fullPath);
+        }
+    }
+
+    /**
+     * Abort the multipart uploads under the context path of this service that
+     * were initiated before the time specified, e.g. uploads left by a process
+     * crashed in the middle of an upload. The parts of an incomplete multipart
+     * upload are charged by S3 until the upload is aborted.
+     *
+     * @param before the time of initiation before which uploads are aborted
+     * @return the number of uploads aborted
+     */
+    public int abortStaleUploads(Date before) {
+        ListMultipartUploadsRequest req = new ListMultipartUploadsRequest(bucket).withPrefix(keyWithContextPath(""));
+        int count = 0;
+        MultipartUploadListing listing;
+        do {
+            try {
+                listing = s3.listMultipartUploads(req);
+            } catch (AmazonS3Exception e) {
+                throw handleException(bucket, e);
+            }
+            for (MultipartUpload upload : listing.getMultipartUploads()) {
+                if (upload.getInitiated().before(before)) {
+                    abortMultipartUpload(upload.getKey(), upload.getUploadId());
+                    count++;
+                }
+            }
+            req.setKeyMarker(listing.getNextKeyMarker());
+            req.setUploadIdMarker(listing.getNextUploadIdMarker());
+        } while (listing.isTruncated());
+        return count;
+    }
+
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        CopyObjectRequest req = new CopyObjectRequest(bucket, srcFullPath, bucket, dstFullPath);
+        req.setStorageClass(defStorageClass.toString());
+        req.withCannedAccessControlList(CannedAccessControlList.PublicRead);
+        try {
+            s3.copyObject(req);
+        } catch (AmazonS3Exception e) {
+            throw handleException(srcFullPath, e);
+        }
+    }
+
+    @Override
+    protected boolean isSameStorage(StorageServiceBase other) {
+        return other instanceof S3Service && S.eq(bucket, ((S3Service) other).bucket);
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(final String fullPrefix, final String delimiter) {
+        return new PagedIterator<ISObject>() {
+            private String continuationToken;
+            private boolean truncated = true;
+
+            @Override
+            protected List<ISObject> nextPage() {
+                if (!truncated) {
+                    return null;
+                }
+                ListObjectsV2Request req = new ListObjectsV2Request()
+                        .withBucketName(bucket)
+                        .withPrefix(S.blank(fullPrefix) ? null : fullPrefix)
+                        .withDelimiter(delimiter)
+                        .withContinuationToken(continuationToken);
+                ListObjectsV2Result result;
+                try {
+                    result = s3.listObjectsV2(req);
+                } catch (AmazonS3Exception e) {
+                    throw handleException(fullPrefix, e);
+                }
+                truncated = result.isTruncated();
+                continuationToken = result.getNextContinuationToken();
+                List<ISObject> page = new ArrayList<>();
+                for (String prefix : result.getCommonPrefixes()) {
+                    page.add(listedPrefix(prefix));
+                }
+                for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                    Map<String, String> attrs = new HashMap<>();
+                    attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(summary.getSize()));
+                    attrs.put(ATTR_ETAG, summary.getETag());
+                    if (null != summary.getLastModified()) {
+                        attrs.put(ATTR_LAST_MODIFIED, S.string(summary.getLastModified().getTime()));
+                    }
+                    if (null != summary.getStorageClass()) {
+                        attrs.put(ATTR_STORAGE_CLASS, summary.getStorageClass());
+                    }
+                    page.add(listedObject(summary.getKey(), attrs));
+                }
+                return page;
+            }
+        };
+    }
+
     private static ObjectTagging mapToTagList(Map<String, String> map) {
         List<Tag> list = new ArrayList<>();
         for (Map.Entry<String, String> entry : map.entrySet()) {
@@ -240,6 +563,8 @@ public class S3Service extends StorageServiceBase<S3Obj> implements IStorageServ
                 throw new ResourceNotFoundException(e, key);
             case 403:
                 throw new AccessDeniedException(e, key);
+            case 416:
+                throw E.invalidRange("requested range not satisfiable: %s", key);
             default:
                 throw e;
         }
@@ -21,39 +21,195 @@ package org.osgl.storage.impl;
  */
 
 import org.osgl.exception.UnexpectedIOException;
+import org.osgl.storage.CompressionCodec;
 import org.osgl.storage.ISObject;
+import org.osgl.util.E;
 import org.osgl.util.IO;
+import org.osgl.util.S;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.Map;
 
 public class StorageObject<TYPE extends StorageObject, SVC extends StorageServiceBase<TYPE>> extends SObject {
     protected transient SVC svc;
-    private SoftReference<byte[]> cache;
     protected transient ISObject buf;
+    private volatile boolean metaLoaded;
+    private volatile boolean statLoaded;
 
     StorageObject(String key, SVC svc) {
         super(key);
         this.svc = svc;
-        setAttributes(svc.getMeta(key));
+        if (svc.isLazyMeta()) {
+            setAttributes(svc.getDefAttributes(key));
+        } else {
+            setAttributes(svc.getMeta(key));
+            metaLoaded = true;
+        }
+    }
+
+    StorageObject(String key, Map<String, String> attrs, SVC svc) {
+        super(key);
+        this.svc = svc;
+        setAttributes(attrs);
+        metaLoaded = true;
+    }
+
+    @Override
+    public String getAttribute(String key) {
+        String val = super.getAttribute(key);
+        if (null == val && !metaLoaded) {
+            loadMeta();
+            val = super.getAttribute(key);
+        }
+        if (null == val && !statLoaded && isStatAttribute(key)) {
+            loadStat();
+            val = super.getAttribute(key);
+        }
+        return val;
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        loadMeta();
+        return super.getAttributes();
+    }
+
+    @Override
+    public boolean hasAttribute() {
+        loadMeta();
+        return super.hasAttribute();
+    }
+
+    /**
+     * Loads the meta attributes if they have not been loaded, so that an object
+     * that does not exist in the storage service is reported as invalid
+     */
+    @Override
+    public boolean isValid() {
+        loadMeta();
+        return super.isValid();
+    }
+
+    @Override
+    public Throwable getException() {
+        loadMeta();
+        return super.getException();
+    }
+
+    /**
+     * Mark the attributes of this object as incomplete, so the meta attributes
+     * will be loaded when an attribute not yet set is requested
+     */
+    final void metaIncomplete() {
+        metaLoaded = false;
+    }
+
+    /**
+     * Returns the attributes that have been set on this object without
+     * loading meta attributes from the storage service
+     */
+    final Map<String, String> loadedAttributes() {
+        return super.getAttributes();
+    }
+
+    /**
+     * Load meta attributes from the storage service if it has not been loaded yet.
+     *
+     * Attributes set on this object before meta attributes get loaded take precedence
+     * over the ones loaded from the storage service
+     */
+    protected final void loadMeta() {
+        if (metaLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (metaLoaded) {
+                return;
+            }
+            try {
+                Map<String, String> meta = svc.getMeta(getKey());
+                for (Map.Entry<String, String> entry : meta.entrySet()) {
+                    String key = entry.getKey();
+                    if (null == super.getAttribute(key)) {
+                        super.setAttribute(key, entry.getValue());
+                    }
+                }
+            } catch (RuntimeException e) {
+                setCause(e);
+            }
+            metaLoaded = true;
+        }
+    }
+
+    private static boolean isStatAttribute(String key) {
+        return StorageServiceBase.ATTR_ETAG.equals(key) || StorageServiceBase.ATTR_LAST_MODIFIED.equals(key);
+    }
+
+    /**
+     * Load the {@link StorageServiceBase#ATTR_ETAG etag} and last modified timestamp
+     * of this object from the storage service, for storage services that do not
+     * return them along with the meta attributes
+     */
+    private void loadStat() {
+        synchronized (this) {
+            if (statLoaded) {
+                return;
+            }
+            try {
+                Map<String, String> stat = svc.getStat(getKey());
+                for (Map.Entry<String, String> entry : stat.entrySet()) {
+                    String key = entry.getKey();
+                    if (isStatAttribute(key) && null == super.getAttribute(key)) {
+                        super.setAttribute(key, entry.getValue());
+                    }
+                }
+            } catch (RuntimeException e) {
+                setCause(e);
+            }
+            statLoaded = true;
+        }
     }
 
     @Override
     public long getLength() {
         String s = getAttribute(ISObject.ATTR_CONTENT_LENGTH);
+        // compressed content is read decompressed, report the length as put
+        String original = loadedAttributes().get(StorageServiceBase.ATTR_ORIGINAL_LENGTH);
+        if (null != original) {
+            s = original;
+        }
         if (null != s) {
             return Long.parseLong(s);
         }
-        if (null != cache) {
-            byte[] ba = cache.get();
-            if (null != ba) {
-                return ba.length;
-            }
-        }
-        return 0L;
+        ISObject buf = this.buf;
+        return null == buf ? 0L : buf.getLength();
+    }
+
+    /**
+     * Returns the codec the content of this object is compressed with, or `null`
+     * if the content is not compressed.
+     *
+     * Meta attributes are loaded to find out the codec only if compression is
+     * enabled on the service, otherwise the codec is honored if it is among
+     * the attributes loaded already, so that reading the content of a lazy
+     * meta object does not fetch its meta attributes
+     *
+     * @return the codec or `null`
+     * @see StorageServiceBase#CONF_COMPRESSION_CODEC
+     */
+    protected final CompressionCodec codec() {
+        String s = svc.isCompressionEnabled()
+                ? getAttribute(StorageServiceBase.ATTR_CONTENT_CODEC)
+                : loadedAttributes().get(StorageServiceBase.ATTR_CONTENT_CODEC);
+        return S.blank(s) ? null : CompressionCodec.Predefined.valueOfIgnoreCase(s);
     }
 
     protected ISObject buf() {
@@ -71,7 +227,39 @@ public class StorageObject<TYPE extends StorageObject, SVC extends StorageServic
     }
 
     protected ISObject loadBuf() {
-        ISObject sobj = SObject.of(read());
+        // use the content length only if it is known without fetching meta attributes
+        Map<String, String> attrs = loadedAttributes();
+        String s = attrs.get(ISObject.ATTR_CONTENT_LENGTH);
+        long length = S.isIntOrLong(s) ? Long.parseLong(s) : -1;
+        CompressionCodec codec = codec();
+        // the content cache keeps the compressed content
+        byte[] content = svc.readContent(getKey(), null == codec ? length : -1);
+        s = attrs.get(StorageServiceBase.ATTR_ORIGINAL_LENGTH);
+        return toBuf(content, codec, null == codec ? length : S.isIntOrLong(s) ? Long.parseLong(s) : -1);
+    }
+
+    /**
+     * Set the content of this object that has been fetched along with its meta
+     * attributes, so that the content is not fetched again when requested
+     *
+     * @param content the content as it is stored, i.e. not decompressed
+     */
+    final synchronized void preload(byte[] content) {
+        CompressionCodec codec = codec();
+        buf = toBuf(content, codec, -1);
+        setAttribute(ISObject.ATTR_CONTENT_LENGTH, S.string(content.length));
+        if (null != codec) {
+            setAttribute(StorageServiceBase.ATTR_ORIGINAL_LENGTH, S.string(buf.getLength()));
+        }
+    }
+
+    private ISObject toBuf(byte[] content, CompressionCodec codec, long length) {
+        boolean shared = null != svc.getContentCache();
+        if (null != codec) {
+            content = ContentReader.read(StorageServiceBase.decompress(new ByteArrayInputStream(content), codec), length);
+            shared = false;
+        }
+        ISObject sobj = new LoadedSObject(getKey(), content, shared);
         sobj.setAttributes(getAttributes());
         return sobj;
     }
@@ -98,21 +286,77 @@ public class StorageObject<TYPE extends StorageObject, SVC extends StorageServic
 
     @Override
     public InputStream asInputStream() throws UnexpectedIOException {
-        return svc.getInputStream(getKey());
+        CompressionCodec codec = codec();
+        InputStream is = svc.getInputStream(getKey());
+        return null == codec ? is : StorageServiceBase.decompress(is, codec);
     }
 
-    private synchronized byte[] read() {
-        if (null != cache) {
-            byte[] ba = cache.get();
-            if (null != ba) {
-                return ba;
-            }
+    /**
+     * Returns a read only byte buffer of the content of this object.
+     *
+     * @return the byte buffer
+     */
+    public ByteBuffer asByteBuffer() throws UnexpectedIOException {
+        return ByteBuffer.wrap(asByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Release the content loaded by this object. The content will be loaded
+     * again the next time it is requested.
+     *
+     * Buffers returned by {@link #asByteBuffer()} shall not be used after
+     * this object is released
+     */
+    public synchronized void release() {
+        buf = null;
+    }
+
+    /**
+     * Returns a channel to read the content of this object
+     *
+     * @return the readable channel
+     */
+    public ReadableByteChannel asChannel() throws UnexpectedIOException {
+        return Channels.newChannel(asInputStream());
+    }
+
+    /**
+     * Write the content of this object into the target channel.
+     *
+     * The content is streamed through a pooled direct buffer. Sub class
+     * shall overwrite this method if the content can be transferred to
+     * the channel without copying, e.g. a file.
+     *
+     * The target channel shall be in blocking mode
+     *
+     * @param target the target channel
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the target channel is in non-blocking mode
+     */
+    public long transferTo(WritableByteChannel target) throws UnexpectedIOException {
+        ReadableByteChannel src = asChannel();
+        try {
+            return DirectBufferPool.copy(src, target);
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(src);
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        InputStream is = svc.getInputStream(getKey());
-        IO.copy(is, baos);
-        byte[] ba = baos.toByteArray();
-        cache = new SoftReference<>(ba);
-        return ba;
+    }
+
+    /**
+     * Returns an input stream to read part of this object
+     *
+     * @param offset the position of the first byte to be read
+     * @param length the number of bytes to be read, `-1` means read till the end
+     * @return the input stream to read the range specified
+     * @see StorageServiceBase#getInputStream(String, long, long)
+     */
+    public InputStream asInputStream(long offset, long length) throws UnexpectedIOException {
+        if (null != codec()) {
+            // compressed content can only be read from the beginning
+            return StorageServiceBase.range(asInputStream(), offset, length);
+        }
+        return svc.getInputStream(getKey(), offset, length);
     }
 }
@@ -23,17 +23,37 @@ package org.osgl.storage.impl;
 import static org.osgl.storage.KeyGenerator.Predefined.BY_DATE;
 
 import org.osgl.$;
+import org.osgl.exception.ResourceNotFoundException;
 import org.osgl.logging.L;
 import org.osgl.logging.Logger;
+import org.osgl.storage.CompressionCodec;
 import org.osgl.storage.ISObject;
 import org.osgl.storage.IStorageService;
 import org.osgl.storage.KeyGenerator;
 import org.osgl.storage.KeyNameProvider;
+import org.osgl.storage.SnowflakeKeyNameProvider;
+import org.osgl.storage.UlidKeyNameProvider;
+import org.osgl.storage.util.MimeTypes;
 import org.osgl.util.C;
+import org.osgl.util.E;
 import org.osgl.util.FastStr;
+import org.osgl.util.IO;
 import org.osgl.util.S;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -53,22 +73,196 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
      */
     public static final String CONF_GET_META_ONLY = "storage.get.MetaOnly";
 
+    /**
+     * When set to `true` the meta attributes of the object returned by
+     * {@link #getFull(String)} will not be loaded until the first time
+     * an attribute or the length of the object is requested.
+     *
+     * Default value: `false`
+     */
+    public static final String CONF_GET_LAZY_META = "storage.get.lazyMeta";
+
     /**
      * The static URL to retrieve cloud object
      */
     public static final String CONF_STATIC_WEB_ENDPOINT = "storage.staticWebEndpoint";
 
     /**
-     * User supplied {@link KeyNameProvider}
+     * User supplied {@link KeyNameProvider}, either the class name or one
+     * of the built-in providers:
+     *
+     * * `uuid`: random UUID, the default provider
+     * * `ulid`: time ordered ULID, see {@link UlidKeyNameProvider}
+     * * `snowflake`: time ordered node id plus sequence, see {@link SnowflakeKeyNameProvider}
      */
     public static final String CONF_KEY_NAME_PROVIDER = "storage.keyNameProvider";
 
+    /**
+     * The node id of the `snowflake` key name provider, from `0` to `1023`.
+     * Each node generating keys into the same storage shall have a distinct
+     * node id.
+     *
+     * Required when the `snowflake` key name provider is used
+     */
+    public static final String CONF_KEY_NAME_PROVIDER_NODE_ID = "storage.keyNameProvider.nodeId";
+
+    /**
+     * When set to `true` the {@link #put(String, ISObject)} call will reload the
+     * object from the storage service after it has been saved, so the returned
+     * object reflects the server's view of the meta attributes.
+     *
+     * Default value: `false`, i.e. the returned object is built from the attributes
+     * that has just been written
+     */
+    public static final String CONF_PUT_VERIFY = "storage.put.verify";
+
+    /**
+     * The maximum number of bytes of object content kept in the content cache
+     * of the service. The cache is shared with the sub folders of the service.
+     *
+     * Default value: `0`, i.e. content cache is disabled
+     *
+     * @see ContentCache
+     */
+    public static final String CONF_CONTENT_CACHE_SIZE = "storage.contentCache.maxSize";
+
+    /**
+     * The maximum number of bytes of a single object that can be put into the
+     * content cache.
+     *
+     * Default value: 1/16 of {@link #CONF_CONTENT_CACHE_SIZE}
+     */
+    public static final String CONF_CONTENT_CACHE_MAX_OBJECT_SIZE = "storage.contentCache.maxObjectSize";
+
+    /**
+     * The time to live, in seconds, of the meta attributes cached by the service.
+     * The cache is shared with the sub folders of the service and is invalidated
+     * by the `put`, `remove`, `copy` and `move` operations of the service.
+     *
+     * Default value: `0`, i.e. meta cache is disabled
+     */
+    public static final String CONF_META_CACHE_TTL = "storage.metaCache.ttl";
+
+    /**
+     * The time to live, in seconds, of the cached result that an object does
+     * not exist. Set to `0` to disable caching of not found objects.
+     *
+     * Default value: the value of {@link #CONF_META_CACHE_TTL}
+     */
+    public static final String CONF_META_CACHE_NEGATIVE_TTL = "storage.metaCache.negativeTtl";
+
+    /**
+     * The maximum number of entries kept in the meta cache.
+     *
+     * Default value: `10000`
+     */
+    public static final String CONF_META_CACHE_MAX_ENTRIES = "storage.metaCache.maxEntries";
+
+    /**
+     * The size, in bytes, of each range fetched in parallel by {@link #downloadTo(String, Path)}.
+     * Objects not larger than this size are downloaded with one request.
+     *
+     * Default value: `8388608`, i.e. 8MB
+     */
+    public static final String CONF_DOWNLOAD_RANGE_SIZE = "storage.download.rangeSize";
+
+    /**
+     * The max number of ranges downloaded in parallel by {@link #downloadTo(String, Path)}.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_DOWNLOAD_CONCURRENCY = "storage.download.concurrency";
+
+    /**
+     * The max number of retries of a failed range download.
+     *
+     * Default value: `3`
+     */
+    public static final String CONF_DOWNLOAD_RETRIES = "storage.download.retries";
+
+    /**
+     * The codec to compress the content of objects put into the service, e.g.
+     * `gzip`, `deflate` or the name of a codec plugged in, see
+     * {@link CompressionCodec.Predefined#valueOfIgnoreCase(String)}.
+     *
+     * Objects with content type that is compressed already, e.g. images and
+     * video, are not compressed, see {@link MimeTypes#isCompressed(String)}.
+     * The codec is recorded in the {@link #ATTR_CONTENT_CODEC} attribute of the
+     * object, the length before compression in {@link #ATTR_ORIGINAL_LENGTH},
+     * and the content is decompressed when it is read through the
+     * storage object, {@link #getInputStream(String, long, long)} or
+     * {@link #downloadTo(String, Path)}. Services without a codec configured
+     * do not fetch meta attributes to look for the codec: they decompress the
+     * content only if the codec attribute is known already, i.e. loaded along
+     * with the storage object or held in the meta cache.
+     *
+     * Content compressed with `gzip` or `deflate` is stored with the matching
+     * `Content-Encoding` on S3 and Azure, so that it is decoded by HTTP clients
+     * fetching it through the static URL. Other services and codecs serve the
+     * compressed bytes as is on the static URL, do not enable compression if
+     * objects are meant to be fetched that way.
+     *
+     * Default value: none, i.e. content is not compressed
+     */
+    public static final String CONF_COMPRESSION_CODEC = "storage.compression.codec";
+
+    /**
+     * The minimum number of bytes of the object content to be compressed.
+     *
+     * Default value: `1024`
+     */
+    public static final String CONF_COMPRESSION_THRESHOLD = "storage.compression.threshold";
+
+    /**
+     * The entity tag of the storage object content, without the surrounding quotes.
+     *
+     * The attribute is available on the objects of all storage services, if it is
+     * not in the meta attributes of the object it is loaded along with
+     * {@link #ATTR_LAST_MODIFIED} from {@link #doGetStat(String)} when requested.
+     *
+     * @see #getIfChanged(String, String)
+     */
+    public static final String ATTR_ETAG = "etag";
+
+    /**
+     * The last modified timestamp, in milliseconds since epoch, of the storage object
+     */
+    public static final String ATTR_LAST_MODIFIED = "last-modified";
+
+    /**
+     * The name of the codec the object content is compressed with, see {@link #CONF_COMPRESSION_CODEC}
+     */
+    public static final String ATTR_CONTENT_CODEC = "content-codec";
+
+    /**
+     * The length of the object content as put into the service, set on
+     * compressed objects only.
+     *
+     * {@link ISObject#ATTR_CONTENT_LENGTH} is the length of the content as
+     * stored, i.e. compressed, the same as reported by the stat, meta
+     * attributes and listing of the storage service. The length reported by
+     * {@link StorageObject#getLength()} is this one if it has been loaded
+     */
+    public static final String ATTR_ORIGINAL_LENGTH = "original-length";
+
+    // compressed content up to this size is kept in memory before being put
+    private static final int MAX_IN_MEMORY_COMPRESSION = 1024 * 1024;
+
 
     private String staticWebEndpoint = null;
     private boolean staticWebEndpointIsAbsolute = false;
     private boolean loadMetaOnly = false;
+    private boolean lazyMeta = false;
     private boolean noGet = false;
+    private boolean verifyPut = false;
     private KeyNameProvider keyNameProvider = KeyNameProvider.DEF_PROVIDER;
+    private ContentCache contentCache;
+    private MetaCache metaCache;
+    private int downloadRangeSize = 8 * 1024 * 1024;
+    private int downloadConcurrency = 4;
+    private int downloadRetries = 3;
+    private CompressionCodec compressionCodec;
+    private int compressionThreshold = 1024;
 
 
     private Class<SOBJ_TYPE> sobjType;
@@ -116,12 +310,72 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
         s = val(conf, CONF_GET_META_ONLY, prefix);
         loadMetaOnly = Boolean.parseBoolean(S.blank(s) ? "false" : s);
 
+        s = val(conf, CONF_GET_LAZY_META, prefix);
+        lazyMeta = Boolean.parseBoolean(S.blank(s) ? "false" : s);
+
         s = val(conf, CONF_GET_NO_GET, prefix);
         noGet = Boolean.parseBoolean(S.blank(s) ? "false" : s);
 
+        s = val(conf, CONF_PUT_VERIFY, prefix);
+        verifyPut = Boolean.parseBoolean(S.blank(s) ? "false" : s);
+
+        s = val(conf, CONF_CONTENT_CACHE_SIZE, prefix);
+        long cacheSize = S.blank(s) ? 0L : Long.parseLong(s.trim());
+        if (cacheSize > 0L) {
+            s = val(conf, CONF_CONTENT_CACHE_MAX_OBJECT_SIZE, prefix);
+            long maxObjectSize = S.blank(s) ? cacheSize / 16 : Long.parseLong(s.trim());
+            contentCache = new ContentCache(cacheSize, maxObjectSize);
+        } else {
+            contentCache = null;
+        }
+
+        s = val(conf, CONF_META_CACHE_TTL, prefix);
+        long metaTtl = S.blank(s) ? 0L : Long.parseLong(s.trim());
+        if (metaTtl > 0L) {
+            s = val(conf, CONF_META_CACHE_NEGATIVE_TTL, prefix);
+            long negativeTtl = S.blank(s) ? metaTtl : Long.parseLong(s.trim());
+            s = val(conf, CONF_META_CACHE_MAX_ENTRIES, prefix);
+            int maxEntries = S.blank(s) ? 10000 : Integer.parseInt(s.trim());
+            metaCache = new MetaCache(maxEntries, metaTtl * 1000, negativeTtl * 1000);
+        } else {
+            metaCache = null;
+        }
+
+        s = val(conf, CONF_DOWNLOAD_RANGE_SIZE, prefix);
+        if (S.notBlank(s)) {
+            downloadRangeSize = Integer.parseInt(s.trim());
+        }
+        s = val(conf, CONF_DOWNLOAD_CONCURRENCY, prefix);
+        if (S.notBlank(s)) {
+            downloadConcurrency = Integer.parseInt(s.trim());
+        }
+        s = val(conf, CONF_DOWNLOAD_RETRIES, prefix);
+        if (S.notBlank(s)) {
+            downloadRetries = Integer.parseInt(s.trim());
+        }
+
+        s = val(conf, CONF_COMPRESSION_CODEC, prefix);
+        compressionCodec = S.blank(s) ? null : CompressionCodec.Predefined.valueOfIgnoreCase(s.trim());
+        s = val(conf, CONF_COMPRESSION_THRESHOLD, prefix);
+        if (S.notBlank(s)) {
+            compressionThreshold = Integer.parseInt(s.trim());
+        }
+
         s = val(conf, CONF_KEY_NAME_PROVIDER, prefix);
         if (S.notBlank(s)) {
-            keyNameProvider = $.newInstance(s);
+            if ("uuid".equalsIgnoreCase(s)) {
+                keyNameProvider = KeyNameProvider.DEF_PROVIDER;
+            } else if ("ulid".equalsIgnoreCase(s)) {
+                keyNameProvider = new UlidKeyNameProvider();
+            } else if ("snowflake".equalsIgnoreCase(s)) {
+                String nodeId = val(conf, CONF_KEY_NAME_PROVIDER_NODE_ID, prefix);
+                if (S.blank(nodeId)) {
+                    throw E.invalidConfiguration("%s is required by the snowflake key name provider", CONF_KEY_NAME_PROVIDER_NODE_ID);
+                }
+                keyNameProvider = new SnowflakeKeyNameProvider(Integer.parseInt(nodeId.trim()));
+            } else {
+                keyNameProvider = $.newInstance(s);
+            }
         }
 
         s = val(conf, CONF_KEY_GEN, prefix);
@@ -162,6 +416,16 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
         return val;
     }
 
+    /**
+     * Returns the content cache of this service.
+     *
+     * @return the content cache, or `null` if content cache is not enabled
+     * @see #CONF_CONTENT_CACHE_SIZE
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
     @Override
     public String id() {
         return id;
@@ -283,14 +547,106 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
 
         Map<String, String> attrs = stuff.getAttributes();
         removeRuntimeAttributes(attrs);
+        if (stuff instanceof StorageObject) {
+            // storage objects provide decompressed content
+            attrs.remove(ATTR_CONTENT_CODEC);
+        }
+        attrs.remove(ATTR_ORIGINAL_LENGTH);
         if (!(stuff instanceof SObject.InputStreamSObject)) {
             long len = stuff.getLength();
             if (0L < len) {
                 attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(len));
             }
         }
-        doPut(keyWithContextPath(processedKey), stuff, attrs);
-        return getFull(processedKey);
+        ISObject payload = compress(stuff, attrs);
+        // backend implementation might change the attrs map, thus we need to take a snapshot
+        Map<String, String> written = C.newMap(attrs);
+        String fullPath = keyWithContextPath(processedKey);
+        try {
+            doPut(fullPath, payload, attrs);
+        } finally {
+            if (payload instanceof SObject.FileSObject && payload != stuff) {
+                IO.delete(payload.asFile());
+            }
+        }
+        invalidate(fullPath);
+        if (verifyPut) {
+            return getFull(processedKey);
+        }
+        setDefAttributes(processedKey, written);
+        return newSObject(processedKey, written);
+    }
+
+    /**
+     * Compress the content of the object to be put with the configured codec.
+     *
+     * The object is returned as is if it is smaller than the compression
+     * threshold, its content type is compressed already, or the compressed
+     * content is not smaller than the original content. Otherwise the codec
+     * name is put into the attributes, and the compressed content is returned
+     * in an object backed by a byte array or by a temporary file if it is large
+     * or of unknown length.
+     */
+    private ISObject compress(ISObject stuff, Map<String, String> attrs) {
+        if (null == compressionCodec || attrs.containsKey(ATTR_CONTENT_CODEC)
+                || MimeTypes.isCompressed(attrs.get(ISObject.ATTR_CONTENT_TYPE))) {
+            return stuff;
+        }
+        long length = stuff instanceof SObject.InputStreamSObject ? -1 : stuff.getLength();
+        if (0 <= length && length < compressionThreshold) {
+            return stuff;
+        }
+        InputStream is = stuff.asInputStream();
+        File file = null;
+        try {
+            if (length < 0) {
+                // probe the head of the stream to find out if it is above the threshold
+                byte[] head = new byte[compressionThreshold];
+                int n = PartUploader.readFully(is, head);
+                if (n < head.length) {
+                    attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(n));
+                    return SObject.of(stuff.getKey(), Arrays.copyOf(head, n), attrs);
+                }
+                is = new SequenceInputStream(new ByteArrayInputStream(head), is);
+            }
+            ByteArrayOutputStream bytes = null;
+            OutputStream os;
+            if (0 <= length && length <= MAX_IN_MEMORY_COMPRESSION) {
+                bytes = new ByteArrayOutputStream((int) length / 2);
+                os = compressionCodec.compress(bytes);
+            } else {
+                file = File.createTempFile("osgl-storage-", ".tmp");
+                os = compressionCodec.compress(new FileOutputStream(file));
+            }
+            long rawLength = 0;
+            try {
+                byte[] buf = new byte[8192];
+                for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+                    os.write(buf, 0, n);
+                    rawLength += n;
+                }
+            } finally {
+                IO.close(os);
+            }
+            long compressedLength = null == bytes ? file.length() : bytes.size();
+            if (0 <= length && compressedLength >= length) {
+                IO.delete(file);
+                return stuff;
+            }
+            attrs.put(ISObject.ATTR_CONTENT_LENGTH, S.string(compressedLength));
+            attrs.put(ATTR_ORIGINAL_LENGTH, S.string(rawLength));
+            attrs.put(ATTR_CONTENT_CODEC, compressionCodec.name());
+            ISObject payload = null == bytes ? SObject.of(stuff.getKey(), file, attrs) : SObject.of(stuff.getKey(), bytes.toByteArray(), attrs);
+            file = null;
+            return payload;
+        } catch (IOException e) {
+            throw E.ioException(e);
+        } finally {
+            IO.close(is);
+            if (null != file) {
+                IO.delete(file);
+            }
+        }
     }
 
     // Runtime attributes are added by storage engine when loading the SObject
@@ -298,6 +654,9 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
         attrs.remove(ISObject.ATTR_SS_ID);
         attrs.remove(ISObject.ATTR_URL);
         attrs.remove(ISObject.ATTR_SS_CTX);
+        // the version of the source object does not apply to the object being put
+        attrs.remove(ATTR_ETAG);
+        attrs.remove(ATTR_LAST_MODIFIED);
     }
 
     @Override
@@ -321,6 +680,8 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
         StorageServiceBase subFolder = newService(conf);
         subFolder.keygen = this.keygen;
         subFolder.contextPath = keyWithContextPath(path);
+        subFolder.contentCache = this.contentCache;
+        subFolder.metaCache = this.metaCache;
         if (S.notBlank(this.staticWebEndpoint)) {
             subFolder.staticWebEndpoint = new StringBuilder(this.staticWebEndpoint).append("/").append(path).toString();
         }
@@ -333,18 +694,537 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
 
     protected Map<String, String> getMeta(String key, boolean force) {
         if (noGet && !force) return C.Map();
-        Map<String, String> map = doGetMeta(keyWithContextPath(key));
+        String fullPath = keyWithContextPath(key);
+        Map<String, String> map = null == metaCache ? doGetMeta(fullPath) : cachedMeta(fullPath);
         setDefAttributes(key, map);
         return map;
     }
 
+    private Map<String, String> cachedMeta(String fullPath) {
+        Map<String, String> map = metaCache.get(fullPath);
+        if (null != map) {
+            return map;
+        }
+        long generation = metaCache.generation();
+        try {
+            map = doGetMeta(fullPath);
+        } catch (ResourceNotFoundException e) {
+            metaCache.put(fullPath, null, generation);
+            throw e;
+        }
+        metaCache.put(fullPath, map, generation);
+        return map;
+    }
+
+    /**
+     * Returns the runtime attributes, e.g. service id, context path and URL of the object
+     * specified by key. These attributes do not require accessing the storage service
+     *
+     * @param key the key of the object
+     * @return the runtime attributes
+     */
+    final Map<String, String> getDefAttributes(String key) {
+        Map<String, String> map = C.newMap();
+        setDefAttributes(key, map);
+        return map;
+    }
+
+    final boolean isLazyMeta() {
+        return lazyMeta;
+    }
+
+    /**
+     * Returns all storage objects with key starts with prefix specified.
+     *
+     * @param prefix the key prefix, e.g. `2026/10/18/`
+     * @return an iterable of storage objects
+     * @see #list(String, String)
+     */
+    public final Iterable<ISObject> list(String prefix) {
+        return list(prefix, null);
+    }
+
+    /**
+     * Returns storage objects with key starts with prefix specified.
+     *
+     * If delimiter is specified, keys that contain the delimiter after the
+     * prefix are rolled up into one {@link ISObject#isDumb() dumb} object
+     * with key ends with the delimiter, e.g. listing with prefix `2026/10/`
+     * and delimiter `/` returns dumb objects `2026/10/01/`, `2026/10/02/` etc.
+     *
+     * The objects are fetched page by page from the storage service while
+     * iterating. The attributes returned by the listing are set on the
+     * returned objects directly, other meta attributes are loaded on demand
+     *
+     * @param prefix    the key prefix
+     * @param delimiter the delimiter, could be `null`
+     * @return an iterable of storage objects
+     */
+    public final Iterable<ISObject> list(String prefix, String delimiter) {
+        final String fullPrefix = keyWithContextPath(S.string(prefix));
+        final String theDelimiter = S.blank(delimiter) ? null : delimiter;
+        return new Iterable<ISObject>() {
+            @Override
+            public Iterator<ISObject> iterator() {
+                return doList(fullPrefix, theDelimiter);
+            }
+        };
+    }
+
+    /**
+     * Create a storage object from a listing entry.
+     *
+     * @param fullPath the full path of the storage object
+     * @param attrs    the attributes returned by the listing
+     * @return the storage object
+     */
+    protected final ISObject listedObject(String fullPath, Map<String, String> attrs) {
+        String key = keyOf(fullPath);
+        setDefAttributes(key, attrs);
+        ISObject sobj = newSObject(key, attrs);
+        if (sobj instanceof StorageObject) {
+            ((StorageObject) sobj).metaIncomplete();
+        }
+        return sobj;
+    }
+
+    /**
+     * Create a dumb object for a rolled up key prefix from a listing.
+     *
+     * @param fullPath the full path of the prefix, including the delimiter
+     * @return the dumb object
+     */
+    protected final ISObject listedPrefix(String fullPath) {
+        return createDumbObject(keyOf(fullPath));
+    }
+
+    /**
+     * Convert the storage objects listed by the source service, which shares
+     * the same storage with this service, into objects of this service
+     *
+     * @param source the source service
+     * @param itr    the iterator returned by {@link #doList(String, String)} of the source service
+     * @return an iterator of storage objects of this service
+     */
+    final Iterator<ISObject> relist(final StorageServiceBase<?> source, final Iterator<ISObject> itr) {
+        return new Iterator<ISObject>() {
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext();
+            }
+
+            @Override
+            public ISObject next() {
+                ISObject sobj = itr.next();
+                String fullPath = source.keyWithContextPath(sobj.getKey());
+                if (sobj.isDumb()) {
+                    return listedPrefix(fullPath);
+                }
+                Map<String, String> attrs = sobj instanceof StorageObject
+                        ? ((StorageObject) sobj).loadedAttributes()
+                        : sobj.getAttributes();
+                return listedObject(fullPath, C.newMap(attrs));
+            }
+
+            @Override
+            public void remove() {
+                throw E.unsupport();
+            }
+        };
+    }
+
+    /**
+     * Returns the configuration for a service that decorates the delegate
+     * service, so that the two services share the same id, context path
+     * and static web endpoint
+     *
+     * @param delegate the delegate service
+     * @return the configuration
+     */
+    static Map<String, String> delegateConf(StorageServiceBase<?> delegate) {
+        Map<String, String> conf = C.newMap(delegate.conf);
+        conf.put(CONF_ID, delegate.id());
+        conf.put(CONF_CONTEXT_PATH, delegate.getContextPath());
+        String endpoint = delegate.getStaticWebEndpoint();
+        if (null != endpoint) {
+            conf.put(CONF_STATIC_WEB_ENDPOINT, endpoint);
+        }
+        return conf;
+    }
+
+    // the reverse of keyWithContextPath
+    private String keyOf(String fullPath) {
+        return fullPath.substring(keyWithContextPath("").length());
+    }
+
     @Override
     public final void remove(String key) {
-        doRemove(keyWithContextPath(key));
+        String fullPath = keyWithContextPath(key);
+        doRemove(fullPath);
+        invalidate(fullPath);
+    }
+
+    /**
+     * Copy the storage object specified by srcKey to dstKey.
+     *
+     * @param srcKey the key of the source object
+     * @param dstKey the key of the target object
+     */
+    public final void copy(String srcKey, String dstKey) {
+        copy(srcKey, this, dstKey);
+    }
+
+    /**
+     * Copy the storage object specified by srcKey to the target storage service.
+     *
+     * If the target service is backed by the same storage, e.g. a sub folder of
+     * this service, the storage's native copy operation is used, otherwise the
+     * content is streamed from this service to the target service
+     *
+     * @param srcKey the key of the source object
+     * @param target the target storage service
+     * @param dstKey the key of the target object
+     */
+    public final void copy(String srcKey, IStorageService target, String dstKey) {
+        if (sharesStorageWith(target)) {
+            StorageServiceBase targetService = (StorageServiceBase) target;
+            String dstFullPath = targetService.keyWithContextPath(dstKey);
+            doCopy(keyWithContextPath(srcKey), dstFullPath);
+            targetService.invalidate(dstFullPath);
+        } else {
+            target.put(dstKey, streamed(srcKey));
+        }
+    }
+
+    /**
+     * Move the storage object specified by srcKey to dstKey.
+     *
+     * @param srcKey the key of the source object
+     * @param dstKey the key of the target object
+     */
+    public final void move(String srcKey, String dstKey) {
+        move(srcKey, this, dstKey);
+    }
+
+    /**
+     * Move the storage object specified by srcKey to the target storage service.
+     *
+     * @param srcKey the key of the source object
+     * @param target the target storage service
+     * @param dstKey the key of the target object
+     * @see #copy(String, IStorageService, String)
+     */
+    public final void move(String srcKey, IStorageService target, String dstKey) {
+        if (sharesStorageWith(target)) {
+            StorageServiceBase targetService = (StorageServiceBase) target;
+            String srcFullPath = keyWithContextPath(srcKey);
+            String dstFullPath = targetService.keyWithContextPath(dstKey);
+            doMove(srcFullPath, dstFullPath);
+            invalidate(srcFullPath);
+            targetService.invalidate(dstFullPath);
+        } else {
+            target.put(dstKey, streamed(srcKey));
+            remove(srcKey);
+        }
+    }
+
+    private boolean sharesStorageWith(IStorageService target) {
+        return this == target || (target instanceof StorageServiceBase && isSameStorage((StorageServiceBase) target));
+    }
+
+    // wrap the stored object into an SObject that is not recognized as a managed object of any service
+    private ISObject streamed(String key) {
+        ISObject sobj = SObject.of(getInputStream(key));
+        sobj.setAttributes(getMeta(key, true));
+        return sobj;
     }
 
     final InputStream getInputStream(String key) {
-        return doGetInputStream(keyWithContextPath(key));
+        String fullPath = keyWithContextPath(key);
+        byte[] content = cachedContent(fullPath);
+        return null == content ? doGetInputStream(fullPath) : IO.inputStream(content);
+    }
+
+    /**
+     * Read the whole content of the storage object specified by key. The content
+     * is served from and put into the content cache if it is enabled
+     *
+     * @param key            the key of the storage object
+     * @param expectedLength the length of the content if known, or `-1`
+     * @return the content of the storage object
+     */
+    final byte[] readContent(String key, long expectedLength) {
+        String fullPath = keyWithContextPath(key);
+        byte[] content = cachedContent(fullPath);
+        if (null == content) {
+            long generation = null == contentCache ? 0L : contentCache.generation();
+            content = ContentReader.read(doGetInputStream(fullPath), expectedLength);
+            if (null != contentCache) {
+                contentCache.put(contentCacheKey(fullPath), content, generation);
+            }
+        }
+        return content;
+    }
+
+    private byte[] cachedContent(String fullPath) {
+        return null == contentCache ? null : contentCache.get(contentCacheKey(fullPath));
+    }
+
+    // invalidate the cached content and meta attributes of the object
+    private void invalidate(String fullPath) {
+        if (null != contentCache) {
+            contentCache.invalidate(contentCacheKey(fullPath));
+        }
+        if (null != metaCache) {
+            metaCache.invalidate(fullPath);
+        }
+    }
+
+    /**
+     * Returns the codec the content of the object specified by key is compressed
+     * with, or `null` if the content is not compressed.
+     *
+     * Meta attributes are fetched only if compression is enabled on this
+     * service, otherwise the codec is looked up in the meta cache only
+     */
+    private CompressionCodec storedCodec(String key) {
+        if (null != compressionCodec) {
+            return codecOf(getMeta(key, true));
+        }
+        Map<String, String> meta = null == metaCache ? null : metaCache.get(keyWithContextPath(key));
+        return null == meta ? null : codecOf(meta);
+    }
+
+    /**
+     * Returns the content attributes of the storage object specified by key
+     *
+     * @see #doGetStat(String)
+     */
+    final Map<String, String> getStat(String key) {
+        return doGetStat(keyWithContextPath(key));
+    }
+
+    final boolean isCompressionEnabled() {
+        return null != compressionCodec;
+    }
+
+    /**
+     * Check if the object with the stat specified has changed since the version
+     * identified by the etag, or the last modified timestamp if etag is `null`
+     */
+    static boolean isChanged(Map<String, String> stat, String etag, long lastModified) {
+        if (null != etag) {
+            return !S.eq(etag, stat.get(ATTR_ETAG));
+        }
+        String s = stat.get(ATTR_LAST_MODIFIED);
+        return !S.isIntOrLong(s) || Long.parseLong(s) > lastModified;
+    }
+
+    /**
+     * Returns the etag with the surrounding quotes, if any, stripped off
+     */
+    static String unquote(String etag) {
+        int len = etag.length();
+        return len > 1 && etag.charAt(0) == '"' && etag.charAt(len - 1) == '"' ? etag.substring(1, len - 1) : etag;
+    }
+
+    /**
+     * Returns the HTTP `Content-Encoding` matching the codec recorded in the
+     * attributes, or `null` if the content is not compressed or compressed
+     * with a codec that has no HTTP equivalent
+     */
+    static String contentEncodingOf(Map<String, String> attrs) {
+        String s = attrs.get(ATTR_CONTENT_CODEC);
+        if (CompressionCodec.Predefined.GZIP.name().equalsIgnoreCase(s)) {
+            return "gzip";
+        } else if (CompressionCodec.Predefined.DEFLATE.name().equalsIgnoreCase(s)) {
+            // the deflate codec writes the zlib format, same as HTTP deflate
+            return "deflate";
+        }
+        return null;
+    }
+
+    static CompressionCodec codecOf(Map<String, String> attrs) {
+        String s = attrs.get(ATTR_CONTENT_CODEC);
+        return S.blank(s) ? null : CompressionCodec.Predefined.valueOfIgnoreCase(s);
+    }
+
+    static InputStream decompress(InputStream is, CompressionCodec codec) {
+        try {
+            return codec.decompress(is);
+        } catch (IOException e) {
+            IO.close(is);
+            throw E.ioException(e);
+        }
+    }
+
+    private String contentCacheKey(String fullPath) {
+        return S.concat(id(), ":", fullPath);
+    }
+
+    /**
+     * Returns an input stream to read part of the storage object specified by key
+     *
+     * @param key    the key of the storage object
+     * @param offset the position of the first byte to be read
+     * @param length the number of bytes to be read, `-1` means read till the end of the object
+     * @return the input stream to read the range specified
+     * @throws org.osgl.exception.InvalidRangeException if offset is beyond the end of the object
+     */
+    public final InputStream getInputStream(String key, long offset, long length) {
+        E.illegalArgumentIf(offset < 0, "offset cannot be negative: %s", offset);
+        E.illegalArgumentIf(length < -1, "invalid length: %s", length);
+        if (0 == length) {
+            return IO.inputStream(new byte[0]);
+        }
+        CompressionCodec codec = storedCodec(key);
+        if (null != codec) {
+            // compressed content can only be read from the beginning
+            return range(decompress(getInputStream(key), codec), offset, length);
+        } else if (0 == offset && -1 == length) {
+            return getInputStream(key);
+        }
+        String fullPath = keyWithContextPath(key);
+        byte[] content = cachedContent(fullPath);
+        if (null != content) {
+            if (offset > content.length) {
+                throw E.invalidRange("offset is beyond the end of object: %s", offset);
+            }
+            int len = (int) (length < 0 ? content.length - offset : Math.min(length, content.length - offset));
+            return new ByteArrayInputStream(content, (int) offset, len);
+        }
+        return doGetInputStream(fullPath, offset, length);
+    }
+
+    /**
+     * Returns the storage object specified by key if it has changed since the
+     * version identified by the etag specified, or `null` if it has not changed.
+     *
+     * This allows a cache in front of the storage service to revalidate the
+     * objects it holds without fetching the content of the unchanged ones. The
+     * content of a changed object is fetched along with the check. Small content
+     * is kept in the returned object, thus it is not fetched again when read.
+     * Content larger than the {@link #CONF_CONTENT_CACHE_MAX_OBJECT_SIZE largest
+     * cache entry}, or the {@link #CONF_DOWNLOAD_RANGE_SIZE download range size}
+     * if no content cache is configured, or of unknown length is not held in
+     * memory; the returned object streams it and can be read only once.
+     *
+     * @param key  the key of the storage object
+     * @param etag the {@link #ATTR_ETAG etag} of the version held by the caller
+     * @return the storage object if changed, or `null` if not changed
+     * @throws ResourceNotFoundException if the object does not exist
+     */
+    public final ISObject getIfChanged(String key, String etag) {
+        E.illegalArgumentIf(S.blank(etag), "etag cannot be blank");
+        return getIfChanged(key, unquote(etag), -1);
+    }
+
+    /**
+     * Returns the storage object specified by key if it has been modified after
+     * the timestamp specified, or `null` if it has not been modified.
+     *
+     * Note some storage services compare the timestamp in seconds, thus an object
+     * modified within the same second could be reported as changed
+     *
+     * @param key          the key of the storage object
+     * @param lastModified the {@link #ATTR_LAST_MODIFIED last modified} timestamp of the version held by the caller
+     * @return the storage object if changed, or `null` if not changed
+     * @throws ResourceNotFoundException if the object does not exist
+     * @see #getIfChanged(String, String)
+     */
+    public final ISObject getIfChanged(String key, long lastModified) {
+        E.illegalArgumentIf(lastModified < 0, "invalid last modified timestamp: %s", lastModified);
+        return getIfChanged(key, null, lastModified);
+    }
+
+    private ISObject getIfChanged(String key, String etag, long lastModified) {
+        String fullPath = keyWithContextPath(key);
+        Map<String, String> meta = C.newMap();
+        long generation = null == contentCache ? 0L : contentCache.generation();
+        InputStream is = doGetInputStreamIfChanged(fullPath, etag, lastModified, meta);
+        if (null == is) {
+            return null;
+        }
+        if (null != metaCache) {
+            metaCache.invalidate(fullPath);
+        }
+        setDefAttributes(key, meta);
+        String s = meta.get(ISObject.ATTR_CONTENT_LENGTH);
+        long length = S.isIntOrLong(s) ? Long.parseLong(s) : -1;
+        if (length < 0 || length > preloadLimit()) {
+            // large body or unknown length, stream it instead of holding it on heap
+            CompressionCodec codec = codecOf(meta);
+            if (null != codec) {
+                is = decompress(is, codec);
+                meta.remove(ATTR_CONTENT_CODEC);
+                meta.remove(ISObject.ATTR_CONTENT_LENGTH);
+                String original = meta.remove(ATTR_ORIGINAL_LENGTH);
+                if (null != original) {
+                    meta.put(ISObject.ATTR_CONTENT_LENGTH, original);
+                }
+            }
+            return SObject.of(key, is, meta);
+        }
+        byte[] content = ContentReader.read(is, length);
+        if (null != contentCache) {
+            contentCache.put(contentCacheKey(fullPath), content, generation);
+        }
+        ISObject sobj = newSObject(key, meta);
+        if (sobj instanceof StorageObject) {
+            ((StorageObject) sobj).preload(content);
+        }
+        return sobj;
+    }
+
+    /**
+     * Returns the maximum size of a changed body that is preloaded by
+     * {@link #getIfChanged(String, String)}, i.e. the largest entry of the
+     * content cache, or the download range size if no content cache is
+     * configured
+     */
+    private long preloadLimit() {
+        return null == contentCache ? downloadRangeSize : contentCache.maximumEntryWeight();
+    }
+
+    /**
+     * Download the storage object specified by key into a local file.
+     *
+     * Large objects are split into ranges of {@link #CONF_DOWNLOAD_RANGE_SIZE}
+     * which are fetched in parallel and written into the target file at their
+     * positions. The progress is kept in a checkpoint file next to the target
+     * file, so that an interrupted download of the same object into the same
+     * file resumes from the ranges not yet completed.
+     *
+     * @param key    the key of the storage object
+     * @param target the target file
+     */
+    public final void downloadTo(String key, Path target) {
+        final String fullPath = keyWithContextPath(key);
+        Map<String, String> stat = cachedContent(fullPath) == null ? doGetStat(fullPath) : null;
+        String s = null == stat ? null : stat.get(ISObject.ATTR_CONTENT_LENGTH);
+        long length = S.blank(s) ? -1 : Long.parseLong(s);
+        if (length <= downloadRangeSize || null != storedCodec(key)) {
+            // small object, unknown length or compressed content, download with one request
+            InputStream is = getInputStream(key, 0, -1);
+            try {
+                Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw E.ioException(e);
+            } finally {
+                IO.close(is);
+            }
+            IO.delete(RangeDownloader.checkpointOf(target));
+            return;
+        }
+        final String etag = S.blank(stat.get(ATTR_ETAG)) ? null : stat.get(ATTR_ETAG);
+        String version = null != etag ? etag : stat.get(ATTR_LAST_MODIFIED);
+        new RangeDownloader(length, version, downloadRangeSize, downloadConcurrency, downloadRetries) {
+            @Override
+            protected InputStream openRange(long offset, long length) {
+                // all ranges shall come from the version the length is taken from
+                return doGetInputStreamIfMatch(fullPath, offset, length, etag);
+            }
+        }.download(target);
     }
 
     protected final String getConfValue(Map<String, String> conf, String key, String def) {
@@ -396,6 +1276,20 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
      */
     protected abstract void doRemove(String fullPath);
 
+    /**
+     * Remove the storage objects specified by fullPaths.
+     *
+     * The default implementation removes the objects one by one. Sub class
+     * shall overwrite this method if the storage service supports batch delete
+     *
+     * @param fullPaths the full paths to locate the storage objects
+     */
+    protected void doRemoveAll(List<String> fullPaths) {
+        for (String fullPath : fullPaths) {
+            doRemove(fullPath);
+        }
+    }
+
     /**
      * Returns the meta attributes from fullPath specified. The fullPath is composed of
      * * {@link #contextPath()}
@@ -406,6 +1300,48 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
      */
     protected abstract Map<String, String> doGetMeta(String fullPath);
 
+    /**
+     * Returns the attributes that identify the content of the storage object
+     * specified by fullPath, i.e. {@link ISObject#ATTR_CONTENT_LENGTH} and
+     * {@link #ATTR_ETAG} or {@link #ATTR_LAST_MODIFIED} if available.
+     *
+     * The default implementation returns {@link #doGetMeta(String)}. Sub class
+     * shall overwrite this method if the meta attributes do not contain the
+     * content length
+     *
+     * @param fullPath the full path to locate the storage object
+     * @return the content attributes of the storage object
+     */
+    protected Map<String, String> doGetStat(String fullPath) {
+        return doGetMeta(fullPath);
+    }
+
+    /**
+     * Returns the input stream of the storage object specified by fullPath if it
+     * has changed since the version held by the caller, or `null` if it has not
+     * changed. The meta attributes of the changed object, including {@link #ATTR_ETAG}
+     * and {@link ISObject#ATTR_CONTENT_LENGTH} if available, shall be put into
+     * the meta map specified.
+     *
+     * The default implementation compares the etag or the last modified timestamp
+     * with the attributes returned by {@link #doGetStat(String)}. Sub class shall
+     * overwrite this method if the storage service supports conditional get natively
+     *
+     * @param fullPath     the full path to locate the storage object
+     * @param etag         the unquoted etag of the version held by the caller, or `null` if lastModified is specified
+     * @param lastModified the last modified timestamp of the version held by the caller, `-1` if etag is specified
+     * @param meta         the map to receive the meta attributes of the changed object
+     * @return the input stream to get the changed object, or `null` if the object has not changed
+     */
+    protected InputStream doGetInputStreamIfChanged(String fullPath, String etag, long lastModified, Map<String, String> meta) {
+        Map<String, String> stat = doGetStat(fullPath);
+        if (!isChanged(stat, etag, lastModified)) {
+            return null;
+        }
+        meta.putAll(stat);
+        return doGetInputStream(fullPath);
+    }
+
     /**
      * Returns the input stream from fullPath specified. The fullPath is composed of
      * * {@link #contextPath()}
@@ -416,6 +1352,60 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
      */
     protected abstract InputStream doGetInputStream(String fullPath);
 
+    /**
+     * Returns the input stream to read a range of the storage object specified by fullPath.
+     * The fullPath is composed of
+     * * {@link #contextPath()}
+     * * {@link ISObject#getKey()}
+     *
+     * The default implementation skips the bytes before `offset` on the full
+     * content stream. Sub class shall overwrite this method if the storage
+     * service supports ranged read natively
+     *
+     * @param fullPath the full path to locate the storage object
+     * @param offset   the position of the first byte to be read
+     * @param length   the number of bytes to be read, `-1` means read till the end of the object
+     * @return the input stream to read the range specified
+     */
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        return range(doGetInputStream(fullPath), offset, length);
+    }
+
+    /**
+     * Returns the input stream to read a range of the storage object specified by fullPath,
+     * provided the object has not changed since the version identified by the etag. This is
+     * used when the ranges of an object are read with separate requests, so that ranges of
+     * different versions of the object do not get mixed up.
+     *
+     * The default implementation does not check the etag and calls
+     * {@link #doGetInputStream(String, long, long)}. Sub class shall overwrite this method
+     * if the storage service supports conditional get natively
+     *
+     * @param fullPath the full path to locate the storage object
+     * @param offset   the position of the first byte to be read
+     * @param length   the number of bytes to be read, `-1` means read till the end of the object
+     * @param etag     the unquoted etag of the expected version, or `null` if not known
+     * @return the input stream to read the range specified
+     * @throws org.osgl.exception.UnexpectedException if the object has changed
+     */
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        return doGetInputStream(fullPath, offset, length);
+    }
+
+    // skip the bytes before offset of the input stream and bound it to length
+    static InputStream range(InputStream is, long offset, long length) {
+        try {
+            BoundedInputStream.skipFully(is, offset);
+        } catch (IOException e) {
+            IO.close(is);
+            throw E.ioException(e);
+        } catch (RuntimeException e) {
+            IO.close(is);
+            throw e;
+        }
+        return length < 0 ? is : new BoundedInputStream(is, length);
+    }
+
     /**
      * Put the storage object specified by fullPath into the storage service. The fullPath is composed of
      * * {@link #contextPath()}
@@ -426,8 +1416,82 @@ public abstract class StorageServiceBase<SOBJ_TYPE extends SObject> implements I
      */
     protected abstract void doPut(String fullPath, ISObject stuff, Map<String, String> attrs);
 
+    /**
+     * Copy storage object from srcFullPath to dstFullPath within the same storage.
+     *
+     * The default implementation streams the content and meta attributes
+     * of the source object to the target. Sub class shall overwrite this
+     * method if the storage service supports copy natively
+     *
+     * @param srcFullPath the full path of the source object
+     * @param dstFullPath the full path of the target object
+     */
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        Map<String, String> attrs = doGetMeta(srcFullPath);
+        doPut(dstFullPath, SObject.of(doGetInputStream(srcFullPath)), attrs);
+    }
+
+    /**
+     * Move storage object from srcFullPath to dstFullPath within the same storage.
+     *
+     * The default implementation copies the object and then remove the source.
+     *
+     * @param srcFullPath the full path of the source object
+     * @param dstFullPath the full path of the target object
+     */
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        doCopy(srcFullPath, dstFullPath);
+        doRemove(srcFullPath);
+    }
+
+    /**
+     * Check if the other storage service is backed by the same storage with this
+     * service, e.g. the same S3 bucket. Objects are copied/moved between services
+     * backed by the same storage with {@link #doCopy(String, String)} and
+     * {@link #doMove(String, String)}
+     *
+     * @param other the other storage service
+     * @return `true` if the two services share the same storage
+     */
+    protected boolean isSameStorage(StorageServiceBase other) {
+        return false;
+    }
+
+    /**
+     * List storage objects with full path starts with fullPrefix. The fullPrefix is composed of
+     * * {@link #contextPath()}
+     * * the key prefix
+     *
+     * Implementation shall fetch the listing lazily and use {@link #listedObject(String, Map)}
+     * and {@link #listedPrefix(String)} to create the elements
+     *
+     * @param fullPrefix the full path prefix
+     * @param delimiter  the delimiter, `null` if not specified
+     * @return an iterator of storage objects
+     */
+    protected abstract Iterator<ISObject> doList(String fullPrefix, String delimiter);
+
     protected abstract ISObject newSObject(String key);
 
+    /**
+     * Create a managed storage object with meta attributes supplied, e.g. the
+     * attributes that has just been written by {@link #put(String, ISObject)}.
+     *
+     * The default implementation creates the object with {@link #newSObject(String)}
+     * and sets the attributes on it, which may fetch meta attributes from the
+     * storage service. Sub class shall overwrite this method to create the
+     * object without fetching meta attributes
+     *
+     * @param key   the key of the storage object
+     * @param attrs the meta attributes of the storage object
+     * @return the storage object
+     */
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        ISObject sobj = newSObject(key);
+        sobj.setAttributes(attrs);
+        return sobj;
+    }
+
     protected abstract StorageServiceBase newService(Map<String, String> conf);
 
     private ISObject createDumbObject(String key) {
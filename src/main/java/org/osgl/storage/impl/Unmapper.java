@@ -0,0 +1,87 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.osgl.logging.L;
+import org.osgl.logging.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases the memory mapping of a {@link MappedByteBuffer} immediately
+ * instead of waiting for the buffer to be garbage collected.
+ *
+ * The JDK does not provide a public API to unmap a buffer, thus the cleaner
+ * of the buffer is invoked via reflection: `Unsafe.invokeCleaner` on Java 9
+ * and above, `DirectBuffer.cleaner().clean()` on earlier versions. If
+ * neither is available the mapping is left to the garbage collector.
+ *
+ * Note the buffer, and any buffer derived from it, must not be accessed
+ * once it is unmapped, otherwise the JVM might crash.
+ */
+final class Unmapper {
+
+    private static final Logger logger = L.get(Unmapper.class);
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method method;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception e) {
+            // before Java 9
+            method = null;
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = method;
+    }
+
+    private Unmapper() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (null != invokeCleaner) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (null != cleaner) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug(e, "cannot unmap buffer, leave it to garbage collector");
+        }
+    }
+}
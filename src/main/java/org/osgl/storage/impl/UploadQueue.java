@@ -0,0 +1,468 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.logging.L;
+import org.osgl.logging.Logger;
+import org.osgl.storage.ISObject;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads objects to and deletes objects from a remote storage service
+ * in background.
+ *
+ * Objects to be uploaded are saved into a spool directory first. Operations
+ * are appended to a journal in the spool directory, which is replayed when
+ * the queue is created again with the same spool directory. The spooled
+ * objects and the journal entries are flushed to disk before an operation
+ * is accepted, so that it survives a system crash.
+ *
+ * Operations on the same object are executed in the order they were
+ * submitted, and an operation that has not yet started is replaced by a
+ * later operation on the same object. Failed operations are retried with
+ * exponential backoff until they succeed. When a batch of removals fails,
+ * the removals are retried one by one, so that one failing object does not
+ * hold back the others. Removing an object that does not exist succeeds.
+ */
+final class UploadQueue {
+
+    private static final Logger logger = L.get(UploadQueue.class);
+
+    private static final String JOURNAL = ".journal";
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private enum Type {
+        PUT, DELETE
+    }
+
+    private static final class Op {
+        final long seq;
+        final Type type;
+        final String fullPath;
+        int attempts;
+
+        Op(long seq, Type type, String fullPath) {
+            this.seq = seq;
+            this.type = type;
+            this.fullPath = fullPath;
+        }
+
+        String spoolKey() {
+            return String.valueOf(seq);
+        }
+    }
+
+    private final StorageServiceBase<?> remote;
+    private final FileSystemService spool;
+    private final ScheduledThreadPoolExecutor executor;
+    private final long retryDelay;
+    private final int deleteBatchSize;
+    private final File journalFile;
+    private final GroupCommit groupCommit = new GroupCommit();
+
+    // the latest operation that has not completed, by full path
+    private final Map<String, Op> pending = new HashMap<>();
+    // the operation being executed, by full path
+    private final Map<String, Op> running = new HashMap<>();
+    private long seq;
+    private Writer journal;
+    private FileOutputStream journalOut;
+    private int journalLines;
+
+    UploadQueue(StorageServiceBase<?> remote, FileSystemService spool, int threads, long retryDelay, int deleteBatchSize) {
+        E.illegalArgumentIf(threads < 1, "threads shall be positive");
+        E.illegalArgumentIf(deleteBatchSize < 1, "delete batch size shall be positive");
+        this.remote = remote;
+        this.spool = spool;
+        this.retryDelay = retryDelay;
+        this.deleteBatchSize = deleteBatchSize;
+        this.journalFile = new File(spool.root(), JOURNAL);
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-upload-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        synchronized (this) {
+            replay();
+            compact();
+            for (String fullPath : pending.keySet()) {
+                schedule(fullPath, 0);
+            }
+        }
+    }
+
+    FileSystemService spool() {
+        return spool;
+    }
+
+    /**
+     * Save the object into the spool directory and schedule the upload
+     *
+     * @param fullPath the full path of the storage object
+     * @param stuff    the storage object
+     * @param attrs    the meta attributes
+     */
+    void put(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        Op op;
+        synchronized (this) {
+            op = new Op(++seq, Type.PUT, fullPath);
+        }
+        spool.doPut(op.spoolKey(), stuff, attrs);
+        enqueue(op);
+    }
+
+    /**
+     * Schedule the removal of the object
+     *
+     * @param fullPath the full path of the storage object
+     */
+    synchronized void remove(String fullPath) {
+        enqueue(new Op(++seq, Type.DELETE, fullPath));
+    }
+
+    /**
+     * Returns the key in the spool service of the object that has not been uploaded yet
+     *
+     * @param fullPath the full path of the storage object
+     * @return the spool key, or `null` if there is no pending operation on the object
+     * @throws ResourceNotFoundException if the object is pending removal
+     */
+    synchronized String spoolKey(String fullPath) {
+        Op op = pending.get(fullPath);
+        if (null == op) {
+            return null;
+        }
+        if (Type.DELETE == op.type) {
+            throw new ResourceNotFoundException("storage object removed: %s", fullPath);
+        }
+        return op.spoolKey();
+    }
+
+    /**
+     * Wait until all operations on the object specified have completed
+     *
+     * @param fullPath the full path of the storage object
+     */
+    synchronized void flush(String fullPath) {
+        while (pending.containsKey(fullPath)) {
+            await();
+        }
+    }
+
+    /**
+     * Wait until all operations have completed
+     */
+    synchronized void flush() {
+        while (!pending.isEmpty()) {
+            await();
+        }
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Stop executing operations. The operations being executed are given
+     * a grace period to complete; other operations are left in the journal
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("upload queue did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            IO.close(journal);
+            journal = null;
+        }
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw E.unexpected(e, "interrupted while waiting for uploads to complete");
+        }
+    }
+
+    private synchronized void enqueue(Op op) {
+        journal(op);
+        Op old = pending.get(op.fullPath);
+        if (null != old && old.seq > op.seq) {
+            // a later operation has been submitted concurrently
+            done(op);
+            return;
+        }
+        pending.put(op.fullPath, op);
+        if (null != old && old != running.get(op.fullPath)) {
+            done(old);
+        }
+        if (!running.containsKey(op.fullPath)) {
+            schedule(op.fullPath, 0);
+        }
+    }
+
+    private void schedule(final String fullPath, long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                process(fullPath);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void process(String fullPath) {
+        List<Op> ops = new ArrayList<>();
+        synchronized (this) {
+            Op op = pending.get(fullPath);
+            if (null == op || running.containsKey(fullPath)) {
+                return;
+            }
+            ops.add(op);
+            if (Type.DELETE == op.type) {
+                for (Op other : pending.values()) {
+                    if (ops.size() >= deleteBatchSize) {
+                        break;
+                    }
+                    if (other != op && Type.DELETE == other.type && !running.containsKey(other.fullPath)) {
+                        ops.add(other);
+                    }
+                }
+            }
+            for (Op o : ops) {
+                running.put(o.fullPath, o);
+            }
+        }
+        try {
+            execute(ops);
+        } catch (RuntimeException e) {
+            if (ops.size() == 1) {
+                failed(ops.get(0), e);
+                return;
+            }
+            // find out the operations that failed
+            for (Op o : ops) {
+                try {
+                    execute(Collections.singletonList(o));
+                } catch (RuntimeException e1) {
+                    failed(o, e1);
+                    continue;
+                }
+                completed(o);
+            }
+            return;
+        }
+        for (Op o : ops) {
+            completed(o);
+        }
+    }
+
+    private void execute(List<Op> ops) {
+        Op op = ops.get(0);
+        if (Type.PUT == op.type) {
+            String key = op.spoolKey();
+            File file = spool.getFile(key);
+            remote.doPut(op.fullPath, SObject.of(op.fullPath, file), spool.doGetMeta(key));
+        } else {
+            List<String> fullPaths = new ArrayList<>(ops.size());
+            for (Op o : ops) {
+                fullPaths.add(o.fullPath);
+            }
+            try {
+                remote.doRemoveAll(fullPaths);
+            } catch (ResourceNotFoundException e) {
+                // removing object that does not exist, the batch is retried
+                // one by one as it is unknown which objects have been removed
+                if (ops.size() > 1) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private synchronized void completed(Op op) {
+        running.remove(op.fullPath);
+        if (pending.get(op.fullPath) == op) {
+            pending.remove(op.fullPath);
+        } else if (pending.containsKey(op.fullPath)) {
+            schedule(op.fullPath, 0);
+        }
+        done(op);
+        notifyAll();
+    }
+
+    private synchronized void failed(Op op, RuntimeException e) {
+        running.remove(op.fullPath);
+        if (pending.get(op.fullPath) != op) {
+            // superseded by a later operation
+            done(op);
+            schedule(op.fullPath, 0);
+            return;
+        }
+        long delay = Math.min(retryDelay << Math.min(op.attempts++, 20), MAX_RETRY_DELAY);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        logger.warn(e, "error executing %s of %s, retry in %sms", op.type, op.fullPath, delay);
+        schedule(op.fullPath, delay);
+    }
+
+    // mark the operation as done and release the spool file
+    private void done(Op op) {
+        journal("C " + op.seq);
+        if (Type.PUT == op.type) {
+            spool.doRemove(op.spoolKey());
+        }
+        if (pending.isEmpty()) {
+            compact();
+        } else if (journalLines > 2 * pending.size() + 1000) {
+            compact();
+        }
+    }
+
+    private void journal(Op op) {
+        journal((Type.PUT == op.type ? "P " : "D ") + op.seq + " " + op.fullPath, true);
+    }
+
+    private void journal(String line) {
+        // a lost completion entry only causes the operation to be executed again
+        journal(line, false);
+    }
+
+    private void journal(String line, boolean sync) {
+        if (null == journal) {
+            return;
+        }
+        try {
+            journal.write(line);
+            journal.write('\n');
+            journal.flush();
+            if (sync) {
+                journalOut.getFD().sync();
+            }
+            journalLines++;
+        } catch (IOException e) {
+            logger.warn(e, "error writing upload journal");
+        }
+    }
+
+    // rewrite the journal with the pending operations
+    private void compact() {
+        IO.close(journal);
+        File tmp = new File(spool.root(), JOURNAL + ".tmp");
+        List<Op> ops = new ArrayList<>(pending.values());
+        Collections.sort(ops, new Comparator<Op>() {
+            @Override
+            public int compare(Op o1, Op o2) {
+                return Long.compare(o1.seq, o2.seq);
+            }
+        });
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Op op : ops) {
+                    w.write((Type.PUT == op.type ? "P " : "D ") + op.seq + " " + op.fullPath + "\n");
+                }
+            } finally {
+                w.close();
+            }
+            groupCommit.sync(Collections.singleton(tmp));
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            groupCommit.sync(Collections.singleton(spool.root()));
+            journalOut = new FileOutputStream(journalFile, true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalOut, "UTF-8"));
+            journalLines = ops.size();
+        } catch (IOException e) {
+            throw E.ioException(e);
+        }
+    }
+
+    private void replay() {
+        Map<Long, Op> ops = new TreeMap<>();
+        if (journalFile.exists()) {
+            for (String line : IO.readLines(journalFile)) {
+                String[] parts = line.split(" ", 3);
+                try {
+                    long opSeq = Long.parseLong(parts[1]);
+                    seq = Math.max(seq, opSeq);
+                    if ("C".equals(parts[0])) {
+                        ops.remove(opSeq);
+                    } else if (parts.length == 3) {
+                        ops.put(opSeq, new Op(opSeq, "P".equals(parts[0]) ? Type.PUT : Type.DELETE, parts[2]));
+                    }
+                } catch (RuntimeException e) {
+                    // the last line might be incomplete
+                    logger.warn("invalid upload journal entry: %s", line);
+                }
+            }
+        }
+        Set<String> spooled = new HashSet<>();
+        for (Op op : ops.values()) {
+            if (Type.PUT == op.type && !spool.getFile(op.spoolKey()).isFile()) {
+                logger.warn("spool file not found, upload of %s dropped", op.fullPath);
+                continue;
+            }
+            Op old = pending.put(op.fullPath, op);
+            if (null != old && Type.PUT == old.type) {
+                spooled.remove(old.spoolKey());
+            }
+            if (Type.PUT == op.type) {
+                spooled.add(op.spoolKey());
+            }
+        }
+        // remove the spool files not referenced by any pending operation
+        String[] names = spool.root().list();
+        if (null != names) {
+            for (String name : names) {
+                String key = name.endsWith(".attr") ? name.substring(0, name.length() - 5) : name;
+                if (!JOURNAL.equals(key) && !MetaIndexStore.INDEX_FILE.equals(key) && !spooled.contains(key)) {
+                    IO.delete(new File(spool.root(), name));
+                }
+            }
+        }
+    }
+
+}
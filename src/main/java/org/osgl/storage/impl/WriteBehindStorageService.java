@@ -0,0 +1,247 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.IStorageService;
+import org.osgl.util.C;
+import org.osgl.util.E;
+import org.osgl.util.S;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A storage service that uploads objects to a remote storage service,
+ * e.g. {@link S3Service}, in background.
+ *
+ * * `put` saves the object into a local spool directory and returns
+ *   without waiting for the upload
+ * * `remove` is executed in background as well, multiple removals are
+ *   sent to the remote service in batch if supported
+ * * failed uploads and removals are retried with exponential backoff
+ * * objects that have not been uploaded are read from the spool directory
+ *
+ * Pending operations are journaled in the spool directory and resumed
+ * when the service is created again with the same spool directory.
+ *
+ * Note objects that have not been uploaded are not returned by
+ * {@link #list(String, String)}
+ */
+public class WriteBehindStorageService extends StorageServiceBase<WriteBehindObject> implements IStorageService {
+
+    /**
+     * The local directory to keep the objects that have not been uploaded
+     */
+    public static final String CONF_SPOOL_DIR = "storage.writeBehind.spoolDir";
+
+    /**
+     * The maximum number of concurrent uploads.
+     *
+     * Default value: `4`
+     */
+    public static final String CONF_THREADS = "storage.writeBehind.threads";
+
+    /**
+     * The delay, in milliseconds, before the first retry of a failed
+     * operation. The delay doubles on each subsequent retry up to 5 minutes.
+     *
+     * Default value: `1000`
+     */
+    public static final String CONF_RETRY_DELAY = "storage.writeBehind.retryDelay";
+
+    /**
+     * The maximum number of objects removed in one batch.
+     *
+     * Default value: `100`
+     */
+    public static final String CONF_DELETE_BATCH_SIZE = "storage.writeBehind.deleteBatchSize";
+
+    private final StorageServiceBase<?> remote;
+    private final UploadQueue queue;
+
+    /**
+     * Construct a write behind storage service on top of the remote storage service.
+     *
+     * The service shares the id, context path, static web endpoint and key
+     * generator of the remote service
+     *
+     * @param remote the remote storage service
+     * @param conf   the configuration of the upload queue
+     */
+    public WriteBehindStorageService(StorageServiceBase<?> remote, Map<String, String> conf) {
+        this(remote, newQueue(remote, conf), delegateConf(remote));
+    }
+
+    private WriteBehindStorageService(StorageServiceBase<?> remote, UploadQueue queue, Map<String, String> conf) {
+        super(conf, WriteBehindObject.class);
+        this.remote = remote;
+        this.queue = queue;
+        this.keygen = remote.keygen;
+    }
+
+    private static UploadQueue newQueue(StorageServiceBase<?> remote, Map<String, String> conf) {
+        String dir = conf.get(CONF_SPOOL_DIR);
+        if (S.blank(dir)) {
+            throw E.invalidConfiguration("spool dir not found in the configuration");
+        }
+        Map<String, String> spoolConf = C.newMap(FileSystemService.CONF_HOME_DIR, dir, FileSystemService.CONF_FSYNC, "true");
+        int threads = Integer.parseInt(getConf(conf, CONF_THREADS, "4"));
+        long retryDelay = Long.parseLong(getConf(conf, CONF_RETRY_DELAY, "1000"));
+        int deleteBatchSize = Integer.parseInt(getConf(conf, CONF_DELETE_BATCH_SIZE, "100"));
+        return new UploadQueue(remote, new FileSystemService(spoolConf), threads, retryDelay, deleteBatchSize);
+    }
+
+    private static String getConf(Map<String, String> conf, String key, String def) {
+        String val = conf.get(key);
+        return S.blank(val) ? def : val.trim();
+    }
+
+    /**
+     * Returns the number of objects pending upload or removal
+     *
+     * @return the number of pending operations
+     */
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Wait until all pending uploads and removals have completed
+     */
+    public void flush() {
+        queue.flush();
+    }
+
+    /**
+     * Stop the background upload. Pending operations are resumed
+     * when the service is created again with the same spool directory
+     */
+    public void shutdown() {
+        queue.shutdown();
+    }
+
+    @Override
+    protected void doRemove(String fullPath) {
+        queue.remove(fullPath);
+    }
+
+    @Override
+    protected Map<String, String> doGetMeta(String fullPath) {
+        String spoolKey = queue.spoolKey(fullPath);
+        if (null != spoolKey) {
+            FileSystemService spool = queue.spool();
+            Map<String, String> meta = spool.doGetMeta(spoolKey);
+            if (spool.getFile(spoolKey).exists()) {
+                return meta;
+            }
+            // uploaded in the meantime
+        }
+        return remote.doGetMeta(fullPath);
+    }
+
+    @Override
+    protected Map<String, String> doGetStat(String fullPath) {
+        String spoolKey = queue.spoolKey(fullPath);
+        if (null != spoolKey) {
+            try {
+                return queue.spool().doGetStat(spoolKey);
+            } catch (ResourceNotFoundException e) {
+                // uploaded in the meantime
+            }
+        }
+        return remote.doGetStat(fullPath);
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath) {
+        return doGetInputStream(fullPath, 0, -1);
+    }
+
+    @Override
+    protected InputStream doGetInputStream(String fullPath, long offset, long length) {
+        String spoolKey = queue.spoolKey(fullPath);
+        if (null != spoolKey) {
+            try {
+                return queue.spool().doGetInputStream(spoolKey, offset, length);
+            } catch (ResourceNotFoundException e) {
+                // uploaded in the meantime
+            }
+        }
+        return 0 == offset && length < 0
+                ? remote.doGetInputStream(fullPath)
+                : remote.doGetInputStream(fullPath, offset, length);
+    }
+
+    @Override
+    protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+        String spoolKey = queue.spoolKey(fullPath);
+        if (null != spoolKey) {
+            try {
+                return queue.spool().doGetInputStream(spoolKey, offset, length);
+            } catch (ResourceNotFoundException e) {
+                // uploaded in the meantime
+            }
+        }
+        return remote.doGetInputStreamIfMatch(fullPath, offset, length, etag);
+    }
+
+    @Override
+    protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
+        queue.put(fullPath, stuff, attrs);
+    }
+
+    @Override
+    protected void doCopy(String srcFullPath, String dstFullPath) {
+        queue.flush(srcFullPath);
+        queue.flush(dstFullPath);
+        remote.doCopy(srcFullPath, dstFullPath);
+    }
+
+    @Override
+    protected void doMove(String srcFullPath, String dstFullPath) {
+        queue.flush(srcFullPath);
+        queue.flush(dstFullPath);
+        remote.doMove(srcFullPath, dstFullPath);
+    }
+
+    @Override
+    protected Iterator<ISObject> doList(String fullPrefix, String delimiter) {
+        return relist(remote, remote.doList(fullPrefix, delimiter));
+    }
+
+    @Override
+    protected ISObject newSObject(String key) {
+        return new WriteBehindObject(key, this);
+    }
+
+    @Override
+    protected ISObject newSObject(String key, Map<String, String> attrs) {
+        return new WriteBehindObject(key, attrs, this);
+    }
+
+    @Override
+    protected StorageServiceBase newService(Map<String, String> conf) {
+        return new WriteBehindStorageService(remote, queue, conf);
+    }
+}
@@ -22,6 +22,7 @@ package org.osgl.storage.util;
 
 import org.osgl.util.C;
 import org.osgl.util.IO;
+import org.osgl.util.MimeType;
 import org.osgl.util.S;
 
 import java.io.File;
@@ -62,4 +63,36 @@ public class MimeTypes {
         mimeType = mimeTypes.getProperty(S.afterLast(fileName, "."));
         return null != mimeType ? mimeType : activationMimeTypes.getContentType(fileName);
     }
+
+    /**
+     * Check if the content of the mime type specified is compressed already, e.g.
+     * images, video, audio and archives, and thus does not benefit from being
+     * compressed again
+     *
+     * @param contentType the content type, e.g. `image/png`
+     * @return `true` if the content is compressed already
+     */
+    public static boolean isCompressed(String contentType) {
+        if (S.blank(contentType)) {
+            return false;
+        }
+        int pos = contentType.indexOf(';');
+        String type = (pos < 0 ? contentType : contentType.substring(0, pos)).trim().toLowerCase();
+        if (type.endsWith("+xml") || type.endsWith("+json") || "image/bmp".equals(type)) {
+            // e.g. image/svg+xml
+            return false;
+        }
+        if (type.startsWith("image/") || type.startsWith("video/") || type.startsWith("audio/")) {
+            return true;
+        }
+        MimeType mimeType = MimeType.findByContentType(type);
+        if (null != mimeType) {
+            return mimeType.hasTrait(MimeType.Trait.archive)
+                    || mimeType.hasTrait(MimeType.Trait.pdf)
+                    || mimeType.hasTrait(MimeType.Trait.docx)
+                    || mimeType.hasTrait(MimeType.Trait.xlsx)
+                    || mimeType.hasTrait(MimeType.Trait.pptx);
+        }
+        return type.contains("zip") || type.contains("compressed");
+    }
 }
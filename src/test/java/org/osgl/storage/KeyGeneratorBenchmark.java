@@ -0,0 +1,130 @@
+package org.osgl.storage;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgl.util.S;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Compares the throughput and the bytes allocated per key of
+ * {@link KeyGenerator.Predefined} with the cached date time prefix against
+ * formatting the template with `Calendar.getInstance()` for every key,
+ * and of the built-in {@link KeyNameProvider}s, across many threads. Run
+ * manually, results are printed to stdout.
+ */
+@Ignore
+public class KeyGeneratorBenchmark extends TestBase {
+
+    private static final int THREADS = 8;
+    private static final int KEYS = 200000;
+
+    private interface Generator {
+        String getKey(String name);
+    }
+
+    @Test
+    public void bySecond() throws Exception {
+        final KeyGenerator.Predefined keygen = KeyGenerator.Predefined.BY_SECOND;
+        Generator legacy = new Generator() {
+            @Override
+            public String getKey(String name) {
+                return S.fmt(keygen.tmpl(), Calendar.getInstance(), name);
+            }
+        };
+        Generator cached = new Generator() {
+            @Override
+            public String getKey(String name) {
+                return keygen.getKey(name, KeyNameProvider.DEF_PROVIDER);
+            }
+        };
+        // warm up
+        run(legacy);
+        run(cached);
+        long[] result = run(legacy);
+        println("Calendar + S.fmt: %,d keys/s, %,d bytes/key", result[0], result[1]);
+        result = run(cached);
+        println("cached prefix   : %,d keys/s, %,d bytes/key", result[0], result[1]);
+    }
+
+    @Test
+    public void keyNames() throws Exception {
+        String[] names = {"uuid", "ulid", "snowflake"};
+        KeyNameProvider[] providers = {KeyNameProvider.DEF_PROVIDER, new UlidKeyNameProvider(), new SnowflakeKeyNameProvider(1)};
+        for (int i = 0; i < names.length; ++i) {
+            final KeyNameProvider provider = providers[i];
+            Generator generator = new Generator() {
+                @Override
+                public String getKey(String name) {
+                    return provider.newKeyName();
+                }
+            };
+            // warm up
+            run(generator);
+            long[] result = run(generator);
+            println("%-9s: %,d keys/s, %,d bytes/key, e.g. %s", names[i], result[0], result[1], provider.newKeyName());
+        }
+    }
+
+    // returns keys per second and bytes allocated per key
+    private long[] run(final Generator generator) throws Exception {
+        final com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] allocated = new long[THREADS];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; ++i) {
+            final int id = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    long tid = Thread.currentThread().getId();
+                    long start = mxBean.getThreadAllocatedBytes(tid);
+                    int len = 0;
+                    for (int j = 0; j < KEYS; ++j) {
+                        len += generator.getKey("name").length();
+                    }
+                    allocated[id] = mxBean.getThreadAllocatedBytes(tid) - start;
+                    if (len == 0) {
+                        throw new IllegalStateException();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long total = 0;
+        for (long n : allocated) {
+            total += n;
+        }
+        return new long[]{THREADS * KEYS * 1000000000L / elapsed, total / (THREADS * KEYS)};
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.osgl.storage;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.osgl.util.S;
+
+import java.util.Calendar;
+import java.util.Random;
+
+public class KeyGeneratorTest extends TestBase {
+
+    private static final KeyGenerator.Predefined[] TIMED = {
+            KeyGenerator.Predefined.BY_DATE,
+            KeyGenerator.Predefined.BY_HOUR,
+            KeyGenerator.Predefined.BY_MINUTE,
+            KeyGenerator.Predefined.BY_SECOND
+    };
+
+    private static final int[] FIELDS = {
+            Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND
+    };
+
+    @Test
+    public void testCachedPrefixMatchesFormat() {
+        Random random = new Random();
+        long now = System.currentTimeMillis();
+        for (KeyGenerator.Predefined keygen : TIMED) {
+            for (int i = 0; i < 1000; ++i) {
+                // within about one year from now
+                long time = now + (long) (random.nextDouble() * 366L * 24 * 3600 * 1000);
+                eq(legacy(keygen, time), keygen.prefix(time) + "name");
+            }
+        }
+    }
+
+    @Test
+    public void testBucketRollover() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2020, Calendar.DECEMBER, 31, 23, 59, 59);
+        calendar.set(Calendar.MILLISECOND, 999);
+        long last = calendar.getTimeInMillis();
+        for (int i = 0; i < TIMED.length; ++i) {
+            KeyGenerator.Predefined keygen = TIMED[i];
+            String before = keygen.prefix(last);
+            String after = keygen.prefix(last + 1);
+            no(S.eq(before, after), "%s shall roll over", keygen);
+            eq(legacy(keygen, last), before + "name");
+            eq(legacy(keygen, last + 1), after + "name");
+            // going back to the previous bucket
+            eq(before, keygen.prefix(last));
+
+            // the start of a bucket of the field belongs to that bucket
+            calendar.setTimeInMillis(last + 1);
+            calendar.add(FIELDS[i], 1);
+            long next = calendar.getTimeInMillis();
+            eq(after, keygen.prefix(next - 1));
+            no(S.eq(after, keygen.prefix(next)));
+            eq(legacy(keygen, next), keygen.prefix(next) + "name");
+        }
+    }
+
+    @Test
+    public void testPlainKey() {
+        eq("name", KeyGenerator.Predefined.PLAIN.getKey("name", KeyNameProvider.DEF_PROVIDER));
+    }
+
+    // the key generated by formatting the template on each call
+    private static String legacy(KeyGenerator.Predefined keygen, long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return S.fmt(keygen.tmpl(), calendar, "name");
+    }
+
+}
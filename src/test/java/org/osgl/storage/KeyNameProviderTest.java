@@ -0,0 +1,132 @@
+package org.osgl.storage;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.osgl.exception.ConfigurationException;
+import org.osgl.storage.impl.FileSystemService;
+import org.osgl.storage.impl.StorageServiceBase;
+import org.osgl.util.C;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+public class KeyNameProviderTest extends TestBase {
+
+    private static final Pattern ULID = Pattern.compile("[0-9A-HJKMNP-TV-Z]{26}");
+    private static final Pattern SNOWFLAKE = Pattern.compile("[0-9A-HJKMNP-TV-Z]{13}");
+
+    @Test
+    public void testUlidFormat() {
+        UlidKeyNameProvider provider = new UlidKeyNameProvider();
+        long before = System.currentTimeMillis();
+        String name = provider.newKeyName();
+        long after = System.currentTimeMillis();
+        yes(ULID.matcher(name).matches(), "invalid ULID: %s", name);
+        long timestamp = decode(name.substring(0, 10));
+        yes(timestamp >= before && timestamp <= after);
+        eq(1577836800000L, decode(provider.newKeyName(1577836800000L).substring(0, 10)));
+    }
+
+    @Test
+    public void testUlidOrderedByTime() {
+        UlidKeyNameProvider provider = new UlidKeyNameProvider();
+        long now = System.currentTimeMillis();
+        // including the times where the lower chars carry over
+        long[] times = {0L, 31L, 32L, 1023L, 1024L, now, now + 1, now + 1000};
+        for (int i = 1; i < times.length; ++i) {
+            String s1 = provider.newKeyName(times[i - 1]);
+            String s2 = provider.newKeyName(times[i]);
+            yes(s1.compareTo(s2) < 0, "%s shall be ordered before %s", s1, s2);
+        }
+    }
+
+    @Test
+    public void testSnowflakeFormat() {
+        SnowflakeKeyNameProvider provider = new SnowflakeKeyNameProvider(5);
+        String name = provider.newKeyName();
+        yes(SNOWFLAKE.matcher(name).matches(), "invalid snowflake key name: %s", name);
+        long id = provider.nextId();
+        eq(5L, (id >>> 12) & SnowflakeKeyNameProvider.MAX_NODE_ID);
+    }
+
+    @Test
+    public void testSnowflakeOrdered() {
+        SnowflakeKeyNameProvider provider = new SnowflakeKeyNameProvider(1);
+        String last = provider.newKeyName();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < 10000; ++i) {
+            String name = provider.newKeyName();
+            yes(last.compareTo(name) < 0, "%s shall be ordered before %s", last, name);
+            names.add(name);
+            last = name;
+        }
+        eq(10000, names.size());
+    }
+
+    @Test
+    public void testSnowflakeSequenceOverflow() {
+        SnowflakeKeyNameProvider provider = new SnowflakeKeyNameProvider(1);
+        long now = System.currentTimeMillis();
+        long first = provider.nextId(now);
+        long last = first;
+        for (int i = 1; i < 5000; ++i) {
+            long id = provider.nextId(now);
+            yes(id > last);
+            last = id;
+        }
+        // the ids after the 4096th borrow the timestamp of the next millisecond
+        eq((first >>> 22) + 1, last >>> 22);
+        eq(5000L - 4096 - 1, last & 4095);
+    }
+
+    @Test
+    public void testSnowflakeClockRegression() {
+        SnowflakeKeyNameProvider provider = new SnowflakeKeyNameProvider(1);
+        long now = System.currentTimeMillis();
+        long id = provider.nextId(now);
+        long later = provider.nextId(now - 1000);
+        yes(later > id);
+        eq(id >>> 22, later >>> 22);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnowflakeInvalidNodeId() {
+        new SnowflakeKeyNameProvider(SnowflakeKeyNameProvider.MAX_NODE_ID + 1);
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testSnowflakeRequiresNodeId() {
+        C.Map<String, String> conf = C.newMap(FileSystemService.CONF_HOME_DIR, "tmp",
+                StorageServiceBase.CONF_KEY_NAME_PROVIDER, "snowflake");
+        new FileSystemService(conf);
+    }
+
+    private static long decode(String s) {
+        long value = 0;
+        for (char c : s.toCharArray()) {
+            value = (value << 5) | new String(UlidKeyNameProvider.CROCKFORD_BASE32).indexOf(c);
+        }
+        return value;
+    }
+
+}
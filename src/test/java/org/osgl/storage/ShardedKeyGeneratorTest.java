@@ -0,0 +1,104 @@
+package org.osgl.storage;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+public class ShardedKeyGeneratorTest extends TestBase {
+
+    private static final String NAME = "name";
+
+    @Test
+    public void testParseDefaults() {
+        KeyGenerator keygen = KeyGenerator.Predefined.valueOfIgnoreCase("sharded:2:2");
+        yes(keygen instanceof ShardedKeyGenerator);
+        matches("[0-9a-f]{2}/[0-9a-f]{2}/name", keygen.getKey(NAME, KeyNameProvider.DEF_PROVIDER));
+        eq(keygen.getKey(NAME, KeyNameProvider.DEF_PROVIDER), ShardedKeyGenerator.valueOfIgnoreCase("sharded").getKey(NAME, KeyNameProvider.DEF_PROVIDER));
+    }
+
+    @Test
+    public void testParseDepthWidthAndBase() {
+        matches("[0-9a-f]{2}/[0-9a-f]{2}/[0-9a-f]{2}/name", keyOf("sharded:3"));
+        matches("[0-9a-f]/[0-9a-f]/name", keyOf("Sharded:2:1"));
+        matches("[0-9a-f]{4}/\\d{4}/\\d{2}/\\d{2}/name", keyOf("SHARDED:1:4:byDate"));
+        matches("[0-9a-f]{2}/[0-9a-f]{2}/\\d{4}/\\d{2}/\\d{2}/\\d{2}/name", keyOf("sharded:2:2:hour"));
+    }
+
+    @Test
+    public void testParseNotSharded() {
+        yes(null == ShardedKeyGenerator.valueOfIgnoreCase("byDate"));
+        yes(null == ShardedKeyGenerator.valueOfIgnoreCase("sharded:1:1:plain:x"));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        invalid("sharded:0");
+        invalid("sharded:2:0");
+        invalid("sharded:4:5");
+        invalid("sharded:x");
+        invalid("sharded:2:2:unknown");
+        invalid("sharded:2:2:sharded");
+        invalid("sharded:2:2:shardedByDate");
+    }
+
+    @Test
+    public void testKeyIsStable() {
+        KeyGenerator keygen = new ShardedKeyGenerator(2, 2, KeyGenerator.Predefined.PLAIN);
+        eq(keygen.getKey(NAME, KeyNameProvider.DEF_PROVIDER), keygen.getKey(NAME, KeyNameProvider.DEF_PROVIDER));
+        matches("[0-9a-f]{2}/[0-9a-f]{2}/.+", keygen.getKey(null, KeyNameProvider.DEF_PROVIDER));
+    }
+
+    @Test
+    public void testShardSpread() {
+        KeyGenerator keygen = new ShardedKeyGenerator(1, 1, KeyGenerator.Predefined.PLAIN);
+        int[] counts = new int[16];
+        int total = 16000;
+        for (int i = 0; i < total; ++i) {
+            // sequential names shall be spread as well as random ones
+            String key = keygen.getKey("obj" + i, KeyNameProvider.DEF_PROVIDER);
+            counts[Character.digit(key.charAt(0), 16)]++;
+        }
+        for (int count : counts) {
+            // expected 1000 per shard with standard deviation about 31
+            yes(count > 800 && count < 1200, "uneven shard spread: %s", count);
+        }
+    }
+
+    private static String keyOf(String spec) {
+        return ShardedKeyGenerator.valueOfIgnoreCase(spec).getKey(NAME, KeyNameProvider.DEF_PROVIDER);
+    }
+
+    private static void matches(String regex, String key) {
+        yes(Pattern.matches(regex, key), "key %s does not match %s", key, regex);
+    }
+
+    private static void invalid(String spec) {
+        try {
+            ShardedKeyGenerator.valueOfIgnoreCase(spec);
+            fail("spec shall be rejected: %s", spec);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.osgl.storage.impl.CachingStorageService.CONF_CACHE_DIR;
+import static org.osgl.storage.impl.CachingStorageService.CONF_CACHE_MAX_SIZE;
+import static org.osgl.storage.impl.FileSystemService.CONF_HOME_DIR;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.TestBase;
+import org.osgl.util.C;
+import org.osgl.util.IO;
+
+import java.io.File;
+
+public class CachingStorageServiceTest extends TestBase {
+
+    private static final String CONTENT = "hello world";
+
+    private File home = new File("tmp/caching");
+    private FileSystemService remote;
+    private CachingStorageService css;
+
+    @Before
+    public void setUp() {
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, new File(home, "remote").getPath());
+        remote = new FileSystemService(conf);
+        css = newService();
+    }
+
+    @After
+    public void tearDown() {
+        IO.delete(home, true);
+    }
+
+    @Test
+    public void testWriteThrough() {
+        css.put("a.txt", SObject.of(CONTENT));
+        eq(CONTENT, remote.get("a.txt").asString());
+        eq((long) CONTENT.length(), css.cacheSize());
+        remote.remove("a.txt");
+        // served from local cache
+        eq(CONTENT, css.get("a.txt").asString());
+    }
+
+    @Test
+    public void testReadThrough() {
+        remote.put("a.txt", SObject.of(CONTENT));
+        eq(0L, css.cacheSize());
+        ISObject sobj = css.get("a.txt");
+        eq(CONTENT, IO.readContentAsString(sobj.asInputStream()));
+        eq((long) CONTENT.length(), css.cacheSize());
+        remote.remove("a.txt");
+        eq(CONTENT, IO.readContentAsString(css.get("a.txt").asInputStream()));
+    }
+
+    @Test
+    public void testRemove() {
+        css.put("a.txt", SObject.of(CONTENT));
+        css.remove("a.txt");
+        eq(0L, css.cacheSize());
+        no(remote.getFile("a.txt").exists());
+    }
+
+    @Test
+    public void testSizeBounded() {
+        // room for two objects
+        css = newService(CONF_CACHE_MAX_SIZE, String.valueOf(CONTENT.length() * 2));
+        css.put("a.txt", SObject.of(CONTENT));
+        css.put("b.txt", SObject.of(CONTENT));
+        css.get("a.txt").asString();
+        css.put("c.txt", SObject.of(CONTENT));
+        eq((long) CONTENT.length() * 2, css.cacheSize());
+        remote.remove("a.txt");
+        remote.remove("b.txt");
+        remote.remove("c.txt");
+        // b.txt is the least recently used one
+        eq(CONTENT, css.get("a.txt").asString());
+        eq(CONTENT, css.get("c.txt").asString());
+        try {
+            css.get("b.txt").asString();
+            fail("b.txt shall be evicted from cache");
+        } catch (ResourceNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() {
+        css.put("a.txt", SObject.of(CONTENT));
+        css.subFolder("sub").put("b.txt", SObject.of(CONTENT));
+        css = newService();
+        eq((long) CONTENT.length() * 2, css.cacheSize());
+        remote.remove("a.txt");
+        eq(CONTENT, css.get("a.txt").asString());
+    }
+
+    private CachingStorageService newService(String... extraConf) {
+        C.Map<String, String> conf = C.newMap(CONF_CACHE_DIR, new File(home, "cache").getPath());
+        for (int i = 0; i < extraConf.length - 1; i += 2) {
+            conf.put(extraConf[i], extraConf[i + 1]);
+        }
+        return new CachingStorageService(remote, conf);
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.osgl.storage.TestBase;
+
+public class ContentCacheTest extends TestBase {
+
+    private static final int ENTRY_SIZE = 100;
+
+    @Test
+    public void testGetPutAndInvalidate() {
+        ContentCache cache = new ContentCache(10000, 1000);
+        no(null != cache.get("a"));
+        byte[] content = new byte[ENTRY_SIZE];
+        cache.put("a", content);
+        yes(content == cache.get("a"));
+        cache.invalidate("a");
+        no(null != cache.get("a"));
+        ContentCache.Stats stats = cache.stats();
+        eq(1L, stats.hitCount());
+        eq(2L, stats.missCount());
+        eq(0L, stats.size());
+        eq(0L, stats.weight());
+    }
+
+    @Test
+    public void testStaleContentNotCached() {
+        ContentCache cache = new ContentCache(10000, 1000);
+        long generation = cache.generation();
+        // the object is updated while its old content is being read
+        cache.invalidate("a");
+        no(cache.put("a", new byte[ENTRY_SIZE], generation));
+        no(null != cache.get("a"));
+        yes(cache.put("a", new byte[ENTRY_SIZE], cache.generation()));
+        yes(null != cache.get("a"));
+    }
+
+    @Test
+    public void testObjectTooLargeNotCached() {
+        ContentCache cache = new ContentCache(10000, 1000);
+        cache.put("a", new byte[1001]);
+        no(null != cache.get("a"));
+    }
+
+    @Test
+    public void testWeightBounded() {
+        ContentCache cache = new ContentCache(10000, 1000);
+        for (int i = 0; i < 1000; ++i) {
+            cache.put("k" + i, new byte[ENTRY_SIZE]);
+        }
+        ContentCache.Stats stats = cache.stats();
+        yes(stats.weight() <= 10000);
+        yes(stats.evictionCount() > 0);
+        eq(stats.weight(), stats.size() * ENTRY_SIZE);
+    }
+
+    @Test
+    public void testFrequentlyUsedEntriesSurviveScan() {
+        ContentCache cache = new ContentCache(10000, 1000);
+        for (int i = 0; i < 50; ++i) {
+            cache.put("hot" + i, new byte[ENTRY_SIZE]);
+        }
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                cache.get("hot" + i);
+            }
+        }
+        // a scan of objects that are read only once
+        for (int i = 0; i < 1000; ++i) {
+            String key = "cold" + i;
+            if (null == cache.get(key)) {
+                cache.put(key, new byte[ENTRY_SIZE]);
+            }
+        }
+        for (int i = 0; i < 50; ++i) {
+            yes(null != cache.get("hot" + i), "hot entry evicted: %s", i);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgl.storage.TestBase;
+import org.osgl.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the bytes allocated per load of a storage object content by
+ * {@link ContentReader} and by the `IO.readContent` plus `SObject.of(byte[])`
+ * path. Run manually, results are printed to stdout.
+ *
+ * Allocation is measured with `com.sun.management.ThreadMXBean`, which
+ * reports the same figure as the `gc.alloc.rate.norm` of JMH `-prof gc`.
+ */
+@Ignore
+public class ContentReaderBenchmark extends TestBase {
+
+    private static final int SIZE = 50 * 1024 * 1024;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void allocation() {
+        byte[] content = new byte[SIZE];
+        new Random().nextBytes(content);
+        // warm up
+        for (int i = 0; i < 3; ++i) {
+            baseline(content);
+            presized(content);
+            unknownLength(content);
+        }
+        println("IO.readContent + SObject.of : %,d bytes/op", allocated(content, 0));
+        println("ContentReader, known length : %,d bytes/op", allocated(content, 1));
+        println("ContentReader, unknown size : %,d bytes/op", allocated(content, 2));
+    }
+
+    private long allocated(byte[] content, int mode) {
+        com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long start = mxBean.getThreadAllocatedBytes(tid);
+        for (int round = 0; round < ROUNDS; ++round) {
+            switch (mode) {
+                case 0:
+                    baseline(content);
+                    break;
+                case 1:
+                    presized(content);
+                    break;
+                default:
+                    unknownLength(content);
+            }
+        }
+        return (mxBean.getThreadAllocatedBytes(tid) - start) / ROUNDS;
+    }
+
+    private static int baseline(byte[] content) {
+        byte[] loaded = IO.readContent(new ByteArrayInputStream(content));
+        return SObject.of(loaded).asByteArray().length;
+    }
+
+    private static int presized(byte[] content) {
+        byte[] loaded = ContentReader.read(new ByteArrayInputStream(content), content.length);
+        return new LoadedSObject("x", loaded, false).asByteArray().length;
+    }
+
+    private static int unknownLength(byte[] content) {
+        byte[] loaded = ContentReader.read(new ByteArrayInputStream(content), -1);
+        return new LoadedSObject("x", loaded, false).asByteArray().length;
+    }
+
+}
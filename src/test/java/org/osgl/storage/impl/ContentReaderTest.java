@@ -0,0 +1,47 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.junit.Test;
+import org.osgl.storage.TestBase;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+public class ContentReaderTest extends TestBase {
+
+    @Test
+    public void testRead() {
+        String content = S.random(ContentReader.TRANSFER_BUFFER_SIZE * 2 + 7);
+        eq(content, new String(ContentReader.read(IO.inputStream(content), content.length())));
+        eq(content, new String(ContentReader.read(IO.inputStream(content), -1)));
+    }
+
+    @Test
+    public void testLengthMismatch() {
+        String content = S.random(100);
+        // content longer than expected
+        eq(content, new String(ContentReader.read(IO.inputStream(content), 10)));
+        // content shorter than expected
+        eq(content, new String(ContentReader.read(IO.inputStream(content), 200)));
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.osgl.storage.impl.FileSystemService.CONF_HOME_DIR;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.TestBase;
+import org.osgl.util.C;
+import org.osgl.util.IO;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DedupStorageServiceTest extends TestBase {
+
+    private static final String CONTENT = "hello world";
+
+    private File home = new File("tmp/dedup");
+    private FileSystemService remote;
+    private DedupStorageService dss;
+
+    @Before
+    public void setUp() {
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath());
+        remote = new FileSystemService(conf);
+        dss = new DedupStorageService(remote, C.<String, String>newMap());
+    }
+
+    @After
+    public void tearDown() {
+        IO.delete(home, true);
+    }
+
+    @Test
+    public void testIdenticalContentStoredOnce() {
+        ISObject sobj = SObject.of(CONTENT);
+        sobj.setContentType("text/plain");
+        dss.put("a.txt", sobj);
+        dss.put("b.txt", SObject.of(IO.inputStream(CONTENT)));
+        eq(CONTENT, dss.get("a.txt").asString());
+        eq(CONTENT, IO.readContentAsString(dss.get("b.txt").asInputStream()));
+        eq("text/plain", dss.get("a.txt").getContentType());
+        eq((long) CONTENT.length(), dss.get("b.txt").getLength());
+        eq(1, contentFiles());
+    }
+
+    @Test
+    public void testContentRemovedWithLastReference() {
+        dss.put("a.txt", SObject.of(CONTENT));
+        dss.copy("a.txt", "b.txt");
+        dss.move("b.txt", "c.txt");
+        dss.remove("a.txt");
+        eq(CONTENT, dss.get("c.txt").asString());
+        eq(1, contentFiles());
+        // overwritten with new content
+        dss.put("c.txt", SObject.of(CONTENT + "!"));
+        eq(CONTENT + "!", dss.get("c.txt").asString());
+        eq(1, contentFiles());
+        dss.remove("c.txt");
+        eq(0, contentFiles());
+    }
+
+    @Test
+    public void testListHidesReservedKeys() {
+        dss.put("a.txt", SObject.of(CONTENT));
+        dss.put("b.txt", SObject.of(CONTENT));
+        Set<String> keys = new HashSet<>();
+        for (ISObject sobj : dss.list("")) {
+            keys.add(sobj.getKey());
+            eq((long) CONTENT.length(), sobj.getLength());
+        }
+        eq(C.set("a.txt", "b.txt"), keys);
+    }
+
+    @Test
+    public void testListDoesNotStatEachObject() {
+        final AtomicInteger stats = new AtomicInteger();
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath());
+        FileSystemService counting = new FileSystemService(conf) {
+            @Override
+            protected Map<String, String> doGetStat(String fullPath) {
+                stats.incrementAndGet();
+                return super.doGetStat(fullPath);
+            }
+        };
+        DedupStorageService listing = new DedupStorageService(counting, C.<String, String>newMap());
+        listing.put("a.txt", SObject.of(CONTENT));
+        listing.put("b.txt", SObject.of(CONTENT));
+        stats.set(0);
+        for (ISObject sobj : listing.list("")) {
+            yes(null != sobj.getKey());
+        }
+        eq(0, stats.get());
+    }
+
+    @Test
+    public void testReservedKeysRejected() {
+        dss.put("a.txt", SObject.of(CONTENT));
+        String contentKey = null;
+        for (ISObject sobj : remote.list(".dedup/")) {
+            if (!sobj.getKey().contains(".refs/")) {
+                contentKey = sobj.getKey();
+            }
+        }
+        try {
+            dss.remove(contentKey);
+            fail("removing the content shall be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            dss.put(".dedup/x.txt", SObject.of(CONTENT));
+            fail("writing under the dedup prefix shall be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        eq(CONTENT, dss.get("a.txt").asString());
+        eq(1, contentFiles());
+    }
+
+    // count the content files stored in the remote service
+    private int contentFiles() {
+        int n = 0;
+        for (ISObject sobj : remote.list(".dedup/")) {
+            if (!sobj.getKey().contains(".refs/")) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.osgl.storage.impl.FileSystemService.CONF_HOME_DIR;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.TestBase;
+import org.osgl.util.C;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro benchmarks of {@link FileSystemService}. Run manually, results are printed to stdout
+ */
+@Ignore
+public class FileSystemServiceBenchmark extends TestBase {
+
+    private static final int OBJECTS = 200;
+    private static final int ROUNDS = 20;
+
+    private File home;
+    private List<String> keys;
+
+    @Before
+    public void setUp() {
+        home = new File("tmp/benchmark");
+        FileSystemService fss = newService();
+        keys = new ArrayList<>();
+        for (int i = 0; i < OBJECTS; ++i) {
+            String key = "obj-" + i;
+            ISObject sobj = SObject.of(S.random(1024));
+            sobj.setContentType("text/plain");
+            fss.put(key, sobj);
+            keys.add(key);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        IO.delete(home, true);
+    }
+
+    @Test
+    public void getThenStream() {
+        FileSystemService eager = newService();
+        FileSystemService lazy = newService(StorageServiceBase.CONF_GET_LAZY_META, "true");
+        // warm up
+        getThenStream(eager);
+        getThenStream(lazy);
+        println("get-then-stream eager meta: %,d ns/op", getThenStream(eager));
+        println("get-then-stream lazy meta : %,d ns/op", getThenStream(lazy));
+    }
+
+    @Test
+    public void metaRead() {
+        for (String type : C.list("properties", "xattr", "index")) {
+            FileSystemService fss = newService(FileSystemService.CONF_META_STORE, type);
+            for (String key : keys) {
+                ISObject sobj = SObject.of(S.random(1024));
+                sobj.setContentType("text/plain");
+                sobj.setAttribute("owner", S.random(8));
+                fss.put(type + "/" + key, sobj);
+            }
+            // warm up
+            metaRead(fss, type);
+            println("meta read %-10s: %,d ns/op", type, metaRead(fss, type));
+        }
+    }
+
+    @Test
+    public void concurrentPutIntoDateDirs() throws Exception {
+        FileSystemService uncached = newService(FileSystemService.CONF_DIR_CACHE_SIZE, "0");
+        FileSystemService cached = newService();
+        // warm up
+        concurrentPut(uncached, "uncached");
+        concurrentPut(cached, "cached");
+        println("concurrent put no dir cache    : %,d ops/s", concurrentPut(uncached, "uncached"));
+        println("concurrent put dir cache       : %,d ops/s", concurrentPut(cached, "cached"));
+        println("concurrent resolve no dir cache: %,d ops/s", concurrentResolve(uncached, "uncached"));
+        println("concurrent resolve dir cache   : %,d ops/s", concurrentResolve(cached, "cached"));
+    }
+
+    private long concurrentResolve(final FileSystemService fss, final String prefix) throws Exception {
+        final int threads = 8;
+        final int resolves = 100000;
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            final int reader = i;
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < resolves; ++j) {
+                        fss.getFile(S.fmt("%s/2026/10/18/16/29/%02d/%s-%s", prefix, j % 4, reader, j % 500));
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        return threads * resolves * 1000000000L / (System.nanoTime() - start);
+    }
+
+    // writers put objects into the same few second level date directories
+    private long concurrentPut(final FileSystemService fss, final String prefix) throws Exception {
+        final int threads = 8;
+        final int puts = 500;
+        final byte[] content = S.random(256).getBytes();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            final int writer = i;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < puts; ++j) {
+                        String key = S.fmt("%s/2026/10/18/16/29/%02d/%s-%s", prefix, j % 4, writer, j);
+                        fss.put(key, SObject.of(content));
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        return threads * puts * 1000000000L / (System.nanoTime() - start);
+    }
+
+    private long metaRead(FileSystemService fss, String prefix) {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (String key : keys) {
+                fss.doGetMeta(prefix + "/" + key);
+            }
+        }
+        return (System.nanoTime() - start) / (ROUNDS * OBJECTS);
+    }
+
+    private long getThenStream(FileSystemService fss) {
+        byte[] buf = new byte[4096];
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (String key : keys) {
+                InputStream is = fss.get(key).asInputStream();
+                try {
+                    while (is.read(buf) > -1) ;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    IO.close(is);
+                }
+            }
+        }
+        return (System.nanoTime() - start) / (ROUNDS * OBJECTS);
+    }
+
+    private FileSystemService newService(String... extraConf) {
+        Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath());
+        for (int i = 0; i < extraConf.length - 1; i += 2) {
+            conf.put(extraConf[i], extraConf[i + 1]);
+        }
+        return new FileSystemService(conf);
+    }
+
+}
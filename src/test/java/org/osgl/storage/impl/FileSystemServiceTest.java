@@ -22,19 +22,34 @@ package org.osgl.storage.impl;
 
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
+import org.osgl.exception.UnexpectedIOException;
 import org.osgl.storage.ISObject;
 import org.osgl.storage.IStorageService;
 import org.osgl.storage.TestBase;
 import org.osgl.util.C;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.osgl.storage.impl.FileSystemService.CONF_HOME_DIR;
 import static org.osgl.storage.impl.FileSystemService.CONF_HOME_URL;
 
-@Ignore
 public class FileSystemServiceTest extends TestBase {
 
+    private File home = new File("tmp/fs");
     private FileSystemService fss;
     private IStorageService subFolder;
     private String key1 = "test.txt";
@@ -44,14 +59,14 @@ public class FileSystemServiceTest extends TestBase {
     @Before
     public void setUp() {
         sobj = SObject.of("hello world");
-        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, "tmp", CONF_HOME_URL, "/uploads");
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), CONF_HOME_URL, "/uploads");
         fss = new FileSystemService(conf);
         subFolder = fss.subFolder(subFolderPath);
     }
 
     @After
     public void tearDown() {
-        fss.remove(key1);
+        IO.delete(home, true);
     }
 
     @Test
@@ -61,6 +76,346 @@ public class FileSystemServiceTest extends TestBase {
         eq(sobj.asString(), loaded.asString());
     }
 
+    @Test
+    public void testPutReturnsManagedObject() {
+        ISObject stored = fss.put(key1, sobj);
+        yes(fss.isManaged(stored));
+        eq(sobj.asString(), stored.asString());
+    }
+
+    @Test
+    public void testLazyMetaGet() {
+        fss.put(key1, sobj);
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_GET_LAZY_META, "true");
+        ISObject loaded = new FileSystemService(conf).get(key1);
+        eq(sobj.asString(), IO.readContentAsString(loaded.asInputStream()));
+        eq(sobj.getLength(), loaded.getLength());
+        no(new FileSystemService(conf).get(key1 + "-missing").isValid());
+    }
+
+    @Test
+    public void testRangedRead() {
+        fss.put(key1, sobj);
+        eq("world", IO.readContentAsString(fss.getInputStream(key1, 6, -1)));
+        eq("lo w", IO.readContentAsString(fss.getInputStream(key1, 3, 4)));
+        eq("", IO.readContentAsString(fss.getInputStream(key1, 11, 10)));
+
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_CONTENT_CACHE_SIZE, "1024");
+        FileSystemService cached = new FileSystemService(conf);
+        // file objects are not read through the content cache, seed it directly
+        cached.getContentCache().put(cached.id() + ":" + cached.keyWithContextPath(key1), sobj.asByteArray());
+        eq("", IO.readContentAsString(cached.getInputStream(key1, 11, 10)));
+    }
+
+    @Test
+    public void testList() {
+        fss.put("list/a/1.txt", sobj);
+        fss.put("list/a/2.txt", sobj);
+        fss.put("list/b/1.txt", sobj);
+        try {
+            List<String> keys = new ArrayList<>();
+            for (ISObject obj : fss.list("list/a/")) {
+                keys.add(obj.getKey());
+                eq(sobj.getLength(), obj.getLength());
+            }
+            eq(C.list("list/a/1.txt", "list/a/2.txt"), keys);
+            keys.clear();
+            for (ISObject obj : fss.list("list/", "/")) {
+                yes(obj.isDumb());
+                keys.add(obj.getKey());
+            }
+            eq(C.list("list/a/", "list/b/"), keys);
+        } finally {
+            fss.remove("list/a/1.txt");
+            fss.remove("list/a/2.txt");
+            fss.remove("list/b/1.txt");
+        }
+    }
+
+    @Test
+    public void testCopyAndMove() {
+        fss.put(key1, sobj);
+        fss.copy(key1, subFolder, key1);
+        eq(sobj.asString(), subFolder.get(key1).asString());
+        fss.move(key1, "moved/" + key1);
+        no(fss.get(key1).isValid());
+        eq(sobj.asString(), fss.get("moved/" + key1).asString());
+        fss.remove("moved/" + key1);
+        subFolder.remove(key1);
+    }
+
+    @Test
+    public void testMetaCache() {
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_META_CACHE_TTL, "60");
+        FileSystemService cached = new FileSystemService(conf);
+        cached.put(key1, withAttr("foo", "bar"));
+        eq("bar", cached.getMeta(key1).get("foo"));
+        // updated by another service, the cached meta shall be returned
+        fss.put(key1, withAttr("foo", "baz"));
+        eq("bar", cached.getMeta(key1).get("foo"));
+        // updated by the service, the cached meta shall be invalidated
+        cached.put(key1, withAttr("foo", "qux"));
+        eq("qux", cached.getMeta(key1).get("foo"));
+    }
+
+    @Test
+    public void testMetaStores() {
+        for (String type : C.list("xattr", "index")) {
+            // attributes written into the legacy `.attr` file shall be migrated on read
+            fss.put(key1, withAttr("foo", "bar"));
+            C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), FileSystemService.CONF_META_STORE, type);
+            FileSystemService store = new FileSystemService(conf);
+            eq("bar", store.getMeta(key1).get("foo"));
+            no(new File(home, key1 + ".attr").exists());
+            eq("bar", store.getMeta(key1).get("foo"));
+
+            store.put(key1, withAttr("foo", "baz"));
+            eq("baz", store.getMeta(key1).get("foo"));
+            store.copy(key1, "meta/copied.txt");
+            store.move(key1, "meta/moved.txt");
+            eq("baz", store.getMeta("meta/copied.txt").get("foo"));
+            eq("baz", store.getMeta("meta/moved.txt").get("foo"));
+            no(store.getMeta(key1).containsKey("foo"));
+            List<String> keys = new ArrayList<>();
+            for (ISObject obj : store.list("meta/")) {
+                keys.add(obj.getKey());
+            }
+            eq(C.list("meta/copied.txt", "meta/moved.txt"), keys);
+
+            store.remove("meta/copied.txt");
+            store.remove("meta/moved.txt");
+            no(store.getMeta("meta/moved.txt").containsKey("foo"));
+        }
+    }
+
+    @Test
+    public void testDownloadTo() throws Exception {
+        String content = S.random(100);
+        fss.put(key1, SObject.of(content));
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_DOWNLOAD_RANGE_SIZE, "16");
+        FileSystemService ranged = new FileSystemService(conf);
+        File target = new File(home, "download.bin");
+        try {
+            ranged.downloadTo(key1, target.toPath());
+            eq(content, IO.readContentAsString(target));
+            no(RangeDownloader.checkpointOf(target.toPath()).exists());
+
+            // simulate an interrupted download with the first range completed
+            String stamp = ranged.doGetStat(key1).get(StorageServiceBase.ATTR_ETAG);
+            IO.writeContent("1234567890123456" + content.substring(16), target);
+            IO.writeContent(S.concat("100 16 ", stamp, "\n0\n"), RangeDownloader.checkpointOf(target.toPath()));
+            ranged.downloadTo(key1, target.toPath());
+            eq("1234567890123456" + content.substring(16), IO.readContentAsString(target));
+        } finally {
+            IO.delete(target);
+        }
+    }
+
+    @Test
+    public void testDownloadToPinsEtag() {
+        fss.put(key1, SObject.of(S.random(100)));
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_DOWNLOAD_RANGE_SIZE, "16");
+        final Set<String> etags = Collections.synchronizedSet(new HashSet<String>());
+        FileSystemService ranged = new FileSystemService(conf) {
+            @Override
+            protected InputStream doGetInputStreamIfMatch(String fullPath, long offset, long length, String etag) {
+                etags.add(etag);
+                return super.doGetInputStreamIfMatch(fullPath, offset, length, etag);
+            }
+        };
+        File target = new File(home, "download.bin");
+        try {
+            ranged.downloadTo(key1, target.toPath());
+            eq(Collections.singleton(ranged.doGetStat(key1).get(StorageServiceBase.ATTR_ETAG)), etags);
+        } finally {
+            IO.delete(target);
+        }
+    }
+
+    @Test
+    public void testTransferTo() {
+        fss.put(key1, sobj);
+        StorageObject loaded = (StorageObject) fss.get(key1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        eq(sobj.getLength(), loaded.transferTo(Channels.newChannel(baos)));
+        eq(sobj.asString(), baos.toString());
+        eq(sobj.asString(), IO.readContentAsString(Channels.newInputStream(loaded.asChannel())));
+    }
+
+    @Test(timeout = 10000)
+    public void testTransferToStalledChannel() {
+        fss.put(key1, sobj);
+        StorageObject loaded = (StorageObject) fss.get(key1);
+        WritableByteChannel stalled = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            loaded.transferTo(stalled);
+            fail("transfer to a stalled channel shall fail");
+        } catch (UnexpectedIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMappedByteBuffer() {
+        fss.put(key1, sobj);
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), FileSystemService.CONF_MMAP_THRESHOLD, "1");
+        StorageObject loaded = (StorageObject) new FileSystemService(conf).get(key1);
+        ByteBuffer buf = loaded.asByteBuffer();
+        yes(buf instanceof MappedByteBuffer);
+        yes(buf.isReadOnly());
+        byte[] ba = new byte[buf.remaining()];
+        buf.get(ba);
+        eq(sobj.asString(), new String(ba));
+        // buffers share the mapping but not the position
+        eq(sobj.getLength(), (long) loaded.asByteBuffer().remaining());
+        loaded.release();
+        // the mapping is not unmapped while the buffers handed out are reachable
+        buf.rewind();
+        buf.get(ba);
+        eq(sobj.asString(), new String(ba));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        String content = S.times("{\"name\": \"value\"}", 500);
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_COMPRESSION_CODEC, "gzip");
+        FileSystemService compressing = new FileSystemService(conf);
+        ISObject stored = compressing.put(key1, SObject.of(content));
+        eq("GZIP", stored.getAttribute(StorageServiceBase.ATTR_CONTENT_CODEC));
+        yes(compressing.getFile(key1).length() < content.length() / 10);
+        // the content length is the stored length on every path, the original length is kept apart
+        String storedLength = S.string(compressing.getFile(key1).length());
+        eq(storedLength, stored.getAttribute(ISObject.ATTR_CONTENT_LENGTH));
+        eq(storedLength, compressing.getMeta(key1).get(ISObject.ATTR_CONTENT_LENGTH));
+        eq(storedLength, compressing.getStat(key1).get(ISObject.ATTR_CONTENT_LENGTH));
+        eq(storedLength, compressing.list(key1).iterator().next().getAttribute(ISObject.ATTR_CONTENT_LENGTH));
+        eq(S.string(content.length()), stored.getAttribute(StorageServiceBase.ATTR_ORIGINAL_LENGTH));
+        eq((long) content.length(), stored.getLength());
+
+        ISObject loaded = compressing.get(key1);
+        eq((long) content.length(), loaded.getLength());
+        eq(content, loaded.asString());
+        eq(content, IO.readContentAsString(loaded.asInputStream()));
+        eq(content.substring(10, 30), IO.readContentAsString(((StorageObject) loaded).asInputStream(10, 20)));
+        eq(content.substring(10, 30), IO.readContentAsString(compressing.getInputStream(key1, 10, 20)));
+        // objects written compressed are readable by services without compression enabled
+        eq(content, fss.get(key1).asString());
+        // or by services with the meta attributes cached
+        C.Map<String, String> cachingConf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_META_CACHE_TTL, "60");
+        FileSystemService caching = new FileSystemService(cachingConf);
+        eq(content, caching.get(key1).asString());
+        eq(content.substring(10, 30), IO.readContentAsString(caching.getInputStream(key1, 10, 20)));
+        File target = new File(home, "download.bin");
+        try {
+            caching.downloadTo(key1, target.toPath());
+            eq(content, IO.readContentAsString(target));
+        } finally {
+            IO.delete(target);
+        }
+
+        // small or already compressed content is stored as is
+        no(compressing.put(key1, sobj).getAttributes().containsKey(StorageServiceBase.ATTR_CONTENT_CODEC));
+        ISObject image = SObject.of(content);
+        image.setAttribute(ISObject.ATTR_CONTENT_TYPE, "image/png");
+        no(compressing.put(key1, image).getAttributes().containsKey(StorageServiceBase.ATTR_CONTENT_CODEC));
+        eq((long) content.length(), compressing.getFile(key1).length());
+    }
+
+    @Test
+    public void testGetIfChanged() throws Exception {
+        ISObject stored = fss.put(key1, sobj);
+        String etag = stored.getAttribute(StorageServiceBase.ATTR_ETAG);
+        yes(null != etag);
+        eq(etag, fss.get(key1).getAttribute(StorageServiceBase.ATTR_ETAG));
+        yes(null == fss.getIfChanged(key1, etag));
+        yes(null == fss.getIfChanged(key1, "\"" + etag + "\""));
+        long lastModified = Long.parseLong(stored.getAttribute(StorageServiceBase.ATTR_LAST_MODIFIED));
+        yes(null == fss.getIfChanged(key1, lastModified));
+
+        fss.put(key1, SObject.of("hello world again"));
+        File file = fss.getFile(key1);
+        yes(file.setLastModified(lastModified + 1000));
+        ISObject changed = fss.getIfChanged(key1, etag);
+        yes(null != changed);
+        eq("hello world again", changed.asString());
+        String newEtag = changed.getAttribute(StorageServiceBase.ATTR_ETAG);
+        no(S.eq(etag, newEtag));
+        yes(null == fss.getIfChanged(key1, newEtag));
+        yes(null != fss.getIfChanged(key1, lastModified));
+        yes(changed instanceof StorageObject);
+
+        // bodies larger than the preload limit are streamed
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), StorageServiceBase.CONF_DOWNLOAD_RANGE_SIZE, "16");
+        ISObject streamed = new FileSystemService(conf).getIfChanged(key1, etag);
+        no(streamed instanceof StorageObject);
+        eq(newEtag, streamed.getAttribute(StorageServiceBase.ATTR_ETAG));
+        eq("hello world again", streamed.asString());
+    }
+
+    private static ISObject withAttr(String key, String val) {
+        ISObject sobj = SObject.of("hello world");
+        sobj.setAttribute(key, val);
+        return sobj;
+    }
+
+    @Test
+    public void testConcurrentDurablePut() throws Exception {
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, home.getPath(), FileSystemService.CONF_FSYNC, "true");
+        final FileSystemService durable = new FileSystemService(conf);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            final String content = S.times(String.valueOf(i), 1000);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; ++j) {
+                        durable.put(key1, SObject.of(content));
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String content = durable.get(key1).asString();
+        eq(1000, content.length());
+        eq(S.times(content.substring(0, 1), 1000), content);
+        for (String name : home.list()) {
+            no(FileSystemService.isTempFile(name));
+        }
+    }
+
+    @Test
+    public void testCachedDirRemoved() {
+        fss.put("dircache/a/1.txt", sobj);
+        // the cached directory removed by others
+        IO.delete(new File(home, "dircache"), true);
+        fss.put("dircache/a/2.txt", sobj);
+        eq(sobj.asString(), fss.get("dircache/a/2.txt").asString());
+        fss.put(key1, sobj);
+        IO.delete(new File(home, "dircache"), true);
+        fss.move(key1, "dircache/a/3.txt");
+        eq(sobj.asString(), fss.get("dircache/a/3.txt").asString());
+        IO.delete(new File(home, "dircache"), true);
+    }
+
     @Test
     public void testSubFolderPut() {
         subFolder.put(key1, sobj);
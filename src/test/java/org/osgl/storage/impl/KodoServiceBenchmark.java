@@ -0,0 +1,119 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.TestBase;
+import org.osgl.util.C;
+import org.osgl.util.IO;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the upload throughput of the single shot upload and the chunked
+ * upload of {@link KodoService}. Run manually with a real bucket, results
+ * are printed to stdout
+ */
+@Ignore
+public class KodoServiceBenchmark extends TestBase {
+
+    private static final String AK = "AccessKey";
+    private static final String SK = "SecretKey";
+    private static final String DOMAIN = "bucketDomain";
+    private static final int SIZE = 64 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kodo-benchmark", ".bin");
+        byte[] buf = new byte[1024 * 1024];
+        Random random = new Random();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < SIZE / buf.length; ++i) {
+                random.nextBytes(buf);
+                os.write(buf);
+            }
+        } finally {
+            IO.close(os);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        IO.delete(file);
+    }
+
+    @Test
+    public void upload() {
+        KodoService singleShot = newService(String.valueOf(Long.MAX_VALUE), "1");
+        KodoService chunked1 = newService("0", "1");
+        KodoService chunked4 = newService("0", "4");
+        KodoService chunked8 = newService("0", "8");
+        // warm up
+        upload(chunked1);
+        println("single shot   : %.1f MB/s", upload(singleShot));
+        println("chunked x 1   : %.1f MB/s", upload(chunked1));
+        println("chunked x 4   : %.1f MB/s", upload(chunked4));
+        println("chunked x 8   : %.1f MB/s", upload(chunked8));
+    }
+
+    private double upload(KodoService kds) {
+        List<String> keys = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            String key = kds.getKey();
+            ISObject sobj = SObject.of(key, file);
+            kds.put(key, sobj);
+            keys.add(key);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (String key : keys) {
+            kds.remove(key);
+        }
+        return (double) SIZE * ROUNDS / (1024 * 1024) / seconds;
+    }
+
+    private KodoService newService(String threshold, String concurrency) {
+        C.Map<String, String> conf = C.newMap(
+                KodoService.CONF_BUCKET, "test",
+                KodoService.CONF_ACCESS_KEY, AK,
+                KodoService.CONF_SECRET_KEY, SK,
+                KodoService.CONF_DOMAIN, DOMAIN,
+                KodoService.CONF_CHUNKED_THRESHOLD, threshold,
+                KodoService.CONF_CHUNKED_CONCURRENCY, concurrency);
+        return new KodoService(conf);
+    }
+
+}
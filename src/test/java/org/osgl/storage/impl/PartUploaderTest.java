@@ -0,0 +1,110 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.osgl.storage.TestBase;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PartUploaderTest extends TestBase {
+
+    private static class Recorder extends PartUploader<Integer> {
+        final Map<Integer, String> parts = new ConcurrentHashMap<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger failures;
+
+        Recorder(int partSize, int concurrency, int failures) {
+            super(partSize, concurrency, 3);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        protected Integer uploadPart(int partNumber, byte[] buf, int len) {
+            int n = inFlight.incrementAndGet();
+            try {
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(n, maxInFlight.get()));
+                }
+                if (failures.getAndDecrement() > 0) {
+                    throw E.unexpected("part upload failed");
+                }
+                parts.put(partNumber, new String(buf, 0, len));
+                Thread.sleep(5);
+                return len;
+            } catch (InterruptedException e) {
+                throw E.unexpected(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        String content() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (int i = 1; i <= parts.size(); ++i) {
+                byte[] ba = parts.get(i).getBytes();
+                baos.write(ba, 0, ba.length);
+            }
+            return baos.toString();
+        }
+    }
+
+    @Test
+    public void testUpload() {
+        String content = S.random(95);
+        Recorder recorder = new Recorder(10, 3, 0);
+        List<Integer> results = recorder.upload(IO.inputStream(content), null);
+        eq(10, results.size());
+        eq(5, (int) results.get(9));
+        eq(content, recorder.content());
+        yes(recorder.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testFirstPartSupplied() {
+        String content = S.random(25);
+        Recorder recorder = new Recorder(10, 2, 0);
+        recorder.upload(IO.inputStream(content.substring(10)), content.substring(0, 10).getBytes());
+        eq(content, recorder.content());
+    }
+
+    @Test
+    public void testRetry() {
+        String content = S.random(50);
+        Recorder recorder = new Recorder(10, 2, 2);
+        recorder.upload(IO.inputStream(content), null);
+        eq(content, recorder.content());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testFailure() {
+        new Recorder(10, 2, 100).upload(IO.inputStream(S.random(50)), null);
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.junit.Test;
+import org.osgl.storage.TestBase;
+import org.osgl.util.IO;
+import org.osgl.util.S;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RangedInputStreamTest extends TestBase {
+
+    private static class Fetcher extends RangedInputStream {
+        final byte[] content;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        Fetcher(byte[] content, long offset, long length, int chunkSize, int concurrency) {
+            super(offset, length, chunkSize, concurrency);
+            this.content = content;
+        }
+
+        @Override
+        protected int fetchRange(long offset, int len, byte[] buf, int bufOffset) throws Exception {
+            int n = inFlight.incrementAndGet();
+            try {
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(n, maxInFlight.get()));
+                }
+                Thread.sleep(2);
+                // return at most 3 bytes at a time to simulate partial reads
+                int size = Math.min(3, Math.min(len, content.length - (int) offset));
+                if (size <= 0) {
+                    return -1;
+                }
+                System.arraycopy(content, (int) offset, buf, bufOffset, size);
+                return size;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testRead() {
+        String content = S.random(95);
+        Fetcher fetcher = new Fetcher(content.getBytes(), 0, 95, 10, 3);
+        eq(content, IO.readContentAsString(fetcher));
+        yes(fetcher.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testReadRange() {
+        String content = S.random(95);
+        eq(content.substring(7, 59), IO.readContentAsString(new Fetcher(content.getBytes(), 7, 52, 10, 2)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        InputStream is = new Fetcher(S.random(25).getBytes(), 0, 40, 10, 2);
+        byte[] buf = new byte[64];
+        while (is.read(buf) >= 0) {
+            // keep reading
+        }
+    }
+
+}
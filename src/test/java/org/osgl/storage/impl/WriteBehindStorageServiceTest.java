@@ -0,0 +1,159 @@
+package org.osgl.storage.impl;
+
+/*-
+ * #%L
+ * Java Storage Service
+ * %%
+ * Copyright (C) 2013 - 2017 OSGL (Open Source General Library)
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.osgl.storage.impl.FileSystemService.CONF_HOME_DIR;
+import static org.osgl.storage.impl.WriteBehindStorageService.CONF_RETRY_DELAY;
+import static org.osgl.storage.impl.WriteBehindStorageService.CONF_SPOOL_DIR;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgl.exception.ResourceNotFoundException;
+import org.osgl.storage.ISObject;
+import org.osgl.storage.TestBase;
+import org.osgl.util.C;
+import org.osgl.util.E;
+import org.osgl.util.IO;
+
+import java.io.File;
+import java.util.Map;
+
+public class WriteBehindStorageServiceTest extends TestBase {
+
+    private static final String CONTENT = "hello world";
+
+    private static class FlakyService extends FileSystemService {
+        volatile boolean failing;
+
+        FlakyService(Map<String, String> conf) {
+            super(conf);
+        }
+
+        @Override
+        protected void doPut(String fullPath, ISObject stuff, Map<String, String> attrs) {
+            if (failing) {
+                throw E.unexpected("service unavailable");
+            }
+            super.doPut(fullPath, stuff, attrs);
+        }
+
+        @Override
+        protected void doRemove(String fullPath) {
+            if (failing) {
+                throw E.unexpected("service unavailable");
+            }
+            if (!getFile(fullPath).exists()) {
+                throw new ResourceNotFoundException("not found: %s", fullPath);
+            }
+            super.doRemove(fullPath);
+        }
+    }
+
+    private File home = new File("tmp/writeBehind");
+    private FlakyService remote;
+    private WriteBehindStorageService wbs;
+
+    @Before
+    public void setUp() {
+        C.Map<String, String> conf = C.newMap(CONF_HOME_DIR, new File(home, "remote").getPath());
+        remote = new FlakyService(conf);
+        wbs = newService();
+    }
+
+    @After
+    public void tearDown() {
+        wbs.shutdown();
+        IO.delete(home, true);
+    }
+
+    @Test
+    public void testPut() {
+        wbs.put("a.txt", SObject.of(CONTENT));
+        wbs.flush();
+        eq(0, wbs.pendingCount());
+        eq(CONTENT, remote.get("a.txt").asString());
+    }
+
+    @Test
+    public void testReadFromSpoolAndRetry() {
+        remote.failing = true;
+        wbs.put("a.txt", SObject.of(CONTENT));
+        eq(1, wbs.pendingCount());
+        eq(CONTENT, wbs.get("a.txt").asString());
+        remote.failing = false;
+        wbs.flush();
+        eq(CONTENT, remote.get("a.txt").asString());
+    }
+
+    @Test
+    public void testRemove() {
+        for (int i = 0; i < 10; ++i) {
+            wbs.put("obj" + i, SObject.of(CONTENT));
+        }
+        wbs.flush();
+        for (int i = 0; i < 10; ++i) {
+            wbs.remove("obj" + i);
+        }
+        wbs.flush();
+        for (int i = 0; i < 10; ++i) {
+            no(remote.getFile("obj" + i).exists());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRemoveBatchWithMissingObjects() {
+        for (int i = 0; i < 10; i += 2) {
+            wbs.put("obj" + i, SObject.of(CONTENT));
+        }
+        wbs.flush();
+        // the removals are batched on retry
+        remote.failing = true;
+        for (int i = 0; i < 10; ++i) {
+            wbs.remove("obj" + i);
+        }
+        remote.failing = false;
+        wbs.flush();
+        for (int i = 0; i < 10; ++i) {
+            no(remote.getFile("obj" + i).exists());
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        remote.failing = true;
+        wbs.put("a.txt", SObject.of(CONTENT));
+        wbs.put("b.txt", SObject.of(CONTENT));
+        wbs.remove("b.txt");
+        wbs.shutdown();
+        remote.failing = false;
+        wbs = newService();
+        wbs.flush();
+        eq(CONTENT, remote.get("a.txt").asString());
+        no(remote.getFile("b.txt").exists());
+    }
+
+    private WriteBehindStorageService newService() {
+        C.Map<String, String> conf = C.newMap(CONF_SPOOL_DIR, new File(home, "spool").getPath(), CONF_RETRY_DELAY, "10");
+        return new WriteBehindStorageService(remote, conf);
+    }
+
+}